@@ -1,6 +1,7 @@
 package com.kusa;
 
 import com.kusa.service.GDriveService;
+import com.kusa.service.LocalService;
 
 /**
  * Main class.
@@ -18,10 +19,16 @@ public class App
     //init deps
     GDriveService gds = new GDriveService();
 
-    //initial downloads.
-    if(gds.isValid())
+    //initial downloads. only blocks when we have no media at all (first run),
+    //otherwise the manifest is enough to start and the sync job catches up in the background.
+    if(!LocalService.hasMedia() && gds.isValid())
       gds.downloadMedia();
 
+    //from here on the playlists look up media in memory.
+    LocalService.index().start();
+    LocalService.probe().start();
+    LocalService.validator().start();
+
     VlcjApp.exec(gds);
   }
 }
@@ -122,6 +122,21 @@ public class Config {
     return ((props == null) ? "" : props.getProperty(propName));
   }
 
+  /**
+   * Returns the value of the property or the fallback if it isn't defined.
+   *
+   * <p>used for the optional tuning properties that older properties files won't have.
+   */
+  public static String getProperty(String propName, String fallback) {
+    String value = getProperty(propName);
+    return ((value == null || value.isBlank()) ? fallback : value.trim());
+  }
+
+  /** Returns the main app folder (always ends with a '/'). */
+  public static String getAppPath() {
+    return appPath;
+  }
+
   /*
    * When the app is first installing it will look for appliaction.properties in the
    * class path. if its not found it will look in our main install folder .jinzo/
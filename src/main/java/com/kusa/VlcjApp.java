@@ -2,6 +2,7 @@ package com.kusa;
 
 import com.kusa.player.AppFrame;
 import com.kusa.player.SidePanel;
+import com.kusa.player.TickerPanel;
 import com.kusa.player.VideoPanel;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
@@ -9,14 +10,15 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 
 import com.kusa.playlist.Playlist;
-import com.kusa.playlist.CircularQueuePlaylist;
+import com.kusa.playlist.ConcurrentPlaylist;
 
 import com.kusa.service.GDriveService;
+import com.kusa.service.LocalService;
 
 import com.kusa.jobs.DownloadFromDrive;
 import com.kusa.jobs.UpdateSidePanel;
 
-import java.util.ArrayList;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
@@ -36,17 +38,25 @@ public class VlcjApp
     final int screenWidth = AppFrame.device.getDisplayMode().getWidth();
     final int screenHeight = AppFrame.device.getDisplayMode().getHeight();
 
+    //optional ticker along the bottom ('ticker=true'), the side panels give up its height.
+    final boolean showTicker = Boolean.parseBoolean(Config.getProperty("ticker", "false"));
+    final int tickerHeight = showTicker ? Integer.parseInt(Config.getProperty("tickerHeight", "80")) : 0;
+
     final ScheduledExecutorService executor = Executors.newScheduledThreadPool(3, Executors.defaultThreadFactory());
 
     //initial playlists.
-    CircularQueuePlaylist leftPanelPlaylist = new CircularQueuePlaylist(new ArrayList<String>(SidePanel.photoMRLS(true)));
-    CircularQueuePlaylist rightPanelPlaylist = new CircularQueuePlaylist(new ArrayList<String>(SidePanel.photoMRLS(false)));
-    CircularQueuePlaylist videoPlaylist = new CircularQueuePlaylist(new ArrayList<String>(VideoPanel.videoMRLS()));
+    ConcurrentPlaylist leftPanelPlaylist = new ConcurrentPlaylist(SidePanel.photoMRLS(true));
+    ConcurrentPlaylist rightPanelPlaylist = new ConcurrentPlaylist(SidePanel.photoMRLS(false));
+    //only validated videos, give the validator a moment when nothing was checked yet (first run).
+    Set<String> videos = VideoPanel.videoMRLS();
+    LocalService.validator().awaitAny(videos, 30_000L);
+    ConcurrentPlaylist videoPlaylist = new ConcurrentPlaylist(LocalService.validator().validOnly(videos));
     
     //panels.
-    SidePanel left = new SidePanel(leftPanelPlaylist.current(), screenWidth/3, screenHeight);
-    SidePanel right = new SidePanel(rightPanelPlaylist.current(), screenWidth/3, screenHeight);
+    SidePanel left = new SidePanel(leftPanelPlaylist.current(), screenWidth/3, screenHeight - tickerHeight);
+    SidePanel right = new SidePanel(rightPanelPlaylist.current(), screenWidth/3, screenHeight - tickerHeight);
     VideoPanel middle = new VideoPanel(videoPlaylist, gds);
+    TickerPanel ticker = showTicker ? new TickerPanel(screenWidth, tickerHeight) : null;
 
     //schedule tasks.
     executor.scheduleAtFixedRate(new DownloadFromDrive(gds, 12, 8), 0L, 3L, TimeUnit.MINUTES);
@@ -54,7 +64,7 @@ public class VlcjApp
     executor.scheduleAtFixedRate(new UpdateSidePanel(right, rightPanelPlaylist, false), 0L, 5L, TimeUnit.MINUTES);
 
     //create engagement frame + add shutdown.
-    AppFrame engagementFrame = new AppFrame(left, right, middle);
+    AppFrame engagementFrame = new AppFrame(left, right, middle, ticker);
     engagementFrame.addWindowListener(new WindowAdapter() {
       @Override 
       public void windowClosing(WindowEvent e)
@@ -79,6 +89,8 @@ public class VlcjApp
 
     //set fullscreen and play the video panel
     engagementFrame.fullscreen();
+    if(ticker != null)
+      ticker.start();
     middle.play();
   }
 }
@@ -1,6 +1,7 @@
 package com.kusa.jobs;
 
 import com.kusa.service.GDriveService;
+import com.kusa.service.LocalService;
 import java.time.LocalDateTime;
 
 /**
@@ -38,6 +39,9 @@ public class DownloadFromDrive implements Runnable
       gds.downloadMedia();
     else
       log("gds is invalid.");
+
+    //pick up anything that changed on disk without the drive service.
+    LocalService.reconcile();
   }
 
   private void log(String message)
@@ -2,7 +2,9 @@ package com.kusa.jobs;
 
 import com.kusa.player.SidePanel;
 import com.kusa.playlist.Playlist;
+import com.kusa.service.LocalService;
 
+import java.util.List;
 import java.util.Set;
 
 public class UpdateSidePanel implements Runnable
@@ -11,6 +13,8 @@ public class UpdateSidePanel implements Runnable
   private SidePanel panel;
   private Playlist playlist;
   private boolean isLeft;
+  //the next image, decoded and scaled ahead of time.
+  private SidePanel.PreparedImage prefetched;
 
   public UpdateSidePanel(SidePanel panel, Playlist playlist, boolean isLeft)
   {
@@ -25,23 +29,29 @@ public class UpdateSidePanel implements Runnable
   {
     if(playlist.index() == 0)
     {
-      log("clearing playlist.");
-
       //the photos come from side panel static method.
       Set<String> photos = SidePanel.photoMRLS(isLeft);
-      if(!photos.isEmpty())
-      {
-        playlist.clear();
-        log(String.format("setting up new playlist for %s panel...", panelName));
-        for(String pic : photos)
-        {
-          log(String.format("adding %s to %s panel playlist.", pic, panelName));
-          playlist.add(pic);
-        }
-      }
+      if(!photos.isEmpty() && playlist.sync(photos))
+        log(String.format("%s panel playlist now has %d photos.", panelName, playlist.size()));
     }
-    log(String.format("set new image %s on %s panel", playlist.current(), panelName));
-    panel.setImage(playlist.next());
+    final String image = playlist.next();
+    log(String.format("set new image %s on %s panel", image, panelName));
+
+    //the image was normally prepared during the last run, then this is just a swap on the EDT.
+    SidePanel.PreparedImage ready = (prefetched != null && prefetched.path().equals(image)) ? prefetched : panel.prepareImage(image);
+    if(ready != prefetched)
+      log("prefetch missed, prepared " + image + " on the spot.");
+    panel.showImage(ready);
+    LocalService.markPlayed(image);
+
+    //get the next image ready long before its slot.
+    prefetched = null;
+    final List<String> tracks = playlist.trackList();
+    if(!tracks.isEmpty())
+      prefetched = panel.prepareImage(tracks.get(playlist.index()));
+    log("image cache: " + SidePanel.imageCache().stats());
+    if(!panel.transitionStats().isEmpty())
+      log(String.format("%s panel transitions: %s", panelName, panel.transitionStats()));
   }
 
   private void log(String message)
@@ -34,6 +34,8 @@ public class AppFrame extends JFrame
   private SidePanel leftPanel;
   private VideoPanel middlePanel;
   private SidePanel rightPanel;
+  //optional, null when the ticker is off.
+  private TickerPanel ticker;
   private JPanel contentPane;
 
   /**
@@ -45,8 +47,15 @@ public class AppFrame extends JFrame
    *  - add in all the panels to this engagment frames layout.
    *  - sets frame properties such as undecorated and visible to true.
    */
-  public AppFrame(SidePanel leftPanel, SidePanel rightPanel, VideoPanel middlePanel)
+  public AppFrame(SidePanel leftPanel, SidePanel rightPanel, VideoPanel middlePanel) { this(leftPanel, rightPanel, middlePanel, null); }
+  /**
+   * Constructs the engagment frame with a ticker along the bottom.
+   *
+   * @param ticker scrolling text panel (null for no ticker).
+   */
+  public AppFrame(SidePanel leftPanel, SidePanel rightPanel, VideoPanel middlePanel, TickerPanel ticker)
   {
+    this.ticker = ticker;
     this.leftPanel = leftPanel;
     this.rightPanel = rightPanel;
     this.middlePanel = middlePanel;
@@ -59,13 +68,20 @@ public class AppFrame extends JFrame
     contentPane.add(leftPanel, BorderLayout.WEST);
     contentPane.add(middlePanel, BorderLayout.CENTER);
     contentPane.add(rightPanel, BorderLayout.EAST);
+    if(ticker != null)
+      contentPane.add(ticker, BorderLayout.SOUTH);
 
     setContentPane(contentPane);
     setVisible(true);
   }
   
   //release the vlcj panel on 'shutdown'
-  public void shutdown() { middlePanel.release(); }
+  public void shutdown()
+  {
+    if(ticker != null)
+      ticker.stop();
+    middlePanel.release();
+  }
 
   /** Toggles full screen on systems main device.
    *
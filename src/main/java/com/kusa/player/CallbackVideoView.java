@@ -0,0 +1,148 @@
+package com.kusa.player;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import javax.swing.JComponent;
+import uk.co.caprica.vlcj.player.base.MediaPlayer;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.BufferFormat;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.BufferFormatCallback;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.RenderCallback;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.format.RV32BufferFormat;
+
+/**
+ * Lightweight component that shows video frames vlc hands us through callbacks.
+ *
+ * the embedded player draws into its own native window, nothing can be
+ * drawn over it and it repaints apart from the rest of the frame. here
+ * vlc decodes into a buffer we own instead, the frame is copied into an
+ * image that is reused for the whole clip, and swing paints it along with
+ * the side panels and ticker into the frame's one back buffer.
+ *
+ * vlc scales the video to fit this component (keeping its aspect ratio),
+ * so painting a frame is a plain blit. nothing is allocated per frame,
+ * only when the video size changes.
+ *
+ * every player gets its own Surface, show() picks the one on screen.
+ */
+public class CallbackVideoView extends JComponent
+{
+  private static final long serialVersionUID = 1L;
+
+  private static final int STATS_EVERY_FRAMES = 1800;
+
+  private volatile Surface shown;
+
+  //stats.
+  private volatile long frames;
+  private volatile long copyNanos;
+
+  public CallbackVideoView()
+  {
+    setOpaque(true);
+    setBackground(Color.BLACK);
+  }
+
+  /** Returns a new surface to give to a media player (see VideoSurfaceApi.newVideoSurface). */
+  public Surface newSurface() { return new Surface(); }
+
+  /** Puts the frames of a surface on screen. */
+  public void show(Surface surface)
+  {
+    shown = surface;
+    repaint();
+  }
+
+  @Override
+  protected void paintComponent(Graphics g)
+  {
+    g.setColor(getBackground());
+    g.fillRect(0, 0, getWidth(), getHeight());
+    Surface s = shown;
+    BufferedImage image = (s == null) ? null : s.image;
+    if(image == null)
+      return;
+    g.drawImage(image, (getWidth() - image.getWidth()) / 2, (getHeight() - image.getHeight()) / 2, null);
+  }
+
+  //stats.
+  public long frames() { return frames; }
+
+  /** Returns the average time to copy a frame out of vlc's buffer in micros. */
+  public double averageCopyMicros()
+  {
+    long count = frames;
+    return count > 0 ? copyNanos / 1000d / count : 0d;
+  }
+
+  /**
+   * Where one media player renders to.
+   *
+   * the callbacks run on vlc's threads.
+   */
+  public class Surface implements BufferFormatCallback, RenderCallback
+  {
+    private volatile BufferedImage image;
+    private int[] pixels;
+    private IntBuffer source;
+
+    private Surface() {}
+
+    @Override
+    public BufferFormat getBufferFormat(int sourceWidth, int sourceHeight)
+    {
+      int width = sourceWidth;
+      int height = sourceHeight;
+      //fit the component (not laid out yet means full size).
+      if(getWidth() > 0 && getHeight() > 0)
+      {
+        double scale = Math.min(getWidth() / (double) sourceWidth, getHeight() / (double) sourceHeight);
+        width = Math.max(1, (int) Math.round(sourceWidth * scale));
+        height = Math.max(1, (int) Math.round(sourceHeight * scale));
+      }
+      if(image == null || image.getWidth() != width || image.getHeight() != height)
+      {
+        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) newImage.getRaster().getDataBuffer()).getData();
+        image = newImage;
+        log(String.format("video frames are %dx%d (source %dx%d).", width, height, sourceWidth, sourceHeight));
+      }
+      return new RV32BufferFormat(width, height);
+    }
+
+    @Override
+    public void allocatedBuffers(ByteBuffer[] buffers)
+    {
+      //RV32 is BGRX in memory, read as native ints that's 0xXXRRGGBB like TYPE_INT_RGB.
+      source = buffers[0].order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @Override
+    public void display(MediaPlayer mediaPlayer, ByteBuffer[] nativeBuffers, BufferFormat bufferFormat)
+    {
+      final IntBuffer src = source;
+      final int[] dst = pixels;
+      if(src == null || dst == null)
+        return;
+      long start = System.nanoTime();
+      src.clear();
+      src.get(dst, 0, Math.min(dst.length, src.remaining()));
+      //a standby player keeps its first frame ready, but only the shown one paints.
+      if(shown != this)
+        return;
+      copyNanos += System.nanoTime() - start;
+      if(++frames % STATS_EVERY_FRAMES == 0)
+        log(String.format("%d frames, avg copy %.0fus.", frames, averageCopyMicros()));
+      repaint();
+    }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[CallbackVideoView] " + message);
+  }
+}
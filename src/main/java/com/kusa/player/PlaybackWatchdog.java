@@ -0,0 +1,347 @@
+package com.kusa.player;
+
+import com.kusa.Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.co.caprica.vlcj.media.MediaStatistics;
+import uk.co.caprica.vlcj.player.base.MediaPlayer;
+import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
+
+/**
+ * Class that watches the video player and skips clips that stopped playing.
+ *
+ * vlc only tells us about a clip ending, a corrupt file or a decoder hang
+ * can leave the screen frozen without a finished event. the watchdog
+ * listens to the time/position events and polls the decode statistics
+ * once a second. a clip is given up on (skipped) when:
+ *  - vlc reports an error.
+ *  - no frame is shown within 'watchdogStartSeconds' (default 15).
+ *  - time stops moving for 'watchdogStallSeconds' (default 10).
+ *  - more than 'watchdogMaxDropPercent' (default 50) of the frames decoded
+ *    in the last few seconds were lost.
+ *
+ * a file that fails 'watchdogQuarantineAfter' (default 3) times is
+ * quarantined: it stays on disk (so drive doesn't send it again) but isn't
+ * played anymore. the list is kept in $HOME/.jinzo/playback.quarantine
+ * ('playbackQuarantinePath') by path and mtime, so a fixed upload plays again.
+ *
+ * time to first frame and stall counts are kept per mrl (see health()).
+ */
+public class PlaybackWatchdog extends MediaPlayerEventAdapter
+{
+  private static final long STALL_NANOS = Long.parseLong(Config.getProperty("watchdogStallSeconds", "10")) * 1_000_000_000L;
+  private static final long START_NANOS = Long.parseLong(Config.getProperty("watchdogStartSeconds", "15")) * 1_000_000_000L;
+  private static final int MAX_DROP_PERCENT = Integer.parseInt(Config.getProperty("watchdogMaxDropPercent", "50"));
+  private static final int QUARANTINE_AFTER = Integer.parseInt(Config.getProperty("watchdogQuarantineAfter", "3"));
+  //drop rate is judged over windows of this many checks, with at least this many decoded frames.
+  private static final int DROP_WINDOW_CHECKS = 5;
+  private static final int DROP_MIN_FRAMES = 50;
+
+  private final Runnable skip;
+  private final Path quarantineFile;
+  private final Set<String> quarantined;
+  private final Map<String, Health> health;
+  private final ScheduledExecutorService checker;
+  private final MediaStatistics statistics;
+
+  //the clip being watched, replaced as a whole by started().
+  private volatile Clip clip;
+
+  private final AtomicLong skips;
+
+  /**
+   * @param skip what to do with a clip we gave up on (play the next one).
+   */
+  public PlaybackWatchdog(Runnable skip)
+  {
+    this(skip, Config.getProperty("playbackQuarantinePath", Config.getAppPath() + "playback.quarantine"));
+  }
+
+  public PlaybackWatchdog(Runnable skip, String quarantinePath)
+  {
+    this.skip = skip;
+    this.quarantineFile = Paths.get(quarantinePath);
+    this.quarantined = ConcurrentHashMap.newKeySet();
+    this.health = new ConcurrentHashMap<>();
+    this.statistics = new MediaStatistics();
+    this.skips = new AtomicLong();
+    loadQuarantine();
+
+    this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "playback-watchdog");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public void start()
+  {
+    checker.scheduleWithFixedDelay(this::check, 1L, 1L, TimeUnit.SECONDS);
+  }
+
+  public void stop()
+  {
+    checker.shutdownNow();
+  }
+
+  /**
+   * Starts watching a clip that was just handed to a player.
+   *
+   * events from any other player (like a gapless standby) are ignored.
+   */
+  public void started(String mrl, MediaPlayer player)
+  {
+    clip = new Clip(mrl, player, System.nanoTime());
+    health(mrl).plays.incrementAndGet();
+  }
+
+  /** Returns true if the file was quarantined by the watchdog. */
+  public boolean isQuarantined(String mrl)
+  {
+    return !quarantined.isEmpty() && quarantined.contains(key(mrl));
+  }
+
+  //vlc events (libvlc thread, keep them cheap).
+
+  @Override
+  public void videoOutput(MediaPlayer mp, int newCount)
+  {
+    Clip c = watched(mp);
+    if(c == null || newCount <= 0 || c.firstFrameNanos != 0L)
+      return;
+    c.firstFrameNanos = System.nanoTime();
+    c.progressNanos = c.firstFrameNanos;
+    health(c.mrl).lastTtffMillis = (c.firstFrameNanos - c.startNanos) / 1_000_000L;
+  }
+
+  @Override
+  public void timeChanged(MediaPlayer mp, long newTime)
+  {
+    Clip c = watched(mp);
+    if(c == null || newTime == c.lastTime)
+      return;
+    c.lastTime = newTime;
+    c.progressNanos = System.nanoTime();
+    //a clip started from a gapless standby had its video output long before it started.
+    if(c.firstFrameNanos == 0L)
+    {
+      c.firstFrameNanos = c.progressNanos;
+      health(c.mrl).lastTtffMillis = (c.firstFrameNanos - c.startNanos) / 1_000_000L;
+    }
+  }
+
+  @Override
+  public void positionChanged(MediaPlayer mp, float newPosition)
+  {
+    Clip c = watched(mp);
+    if(c != null && c.firstFrameNanos == 0L && newPosition > 0f)
+      c.progressNanos = System.nanoTime(); //audio only clips never get a video output.
+  }
+
+  @Override
+  public void error(MediaPlayer mp)
+  {
+    Clip c = watched(mp);
+    if(c != null)
+      checker.execute(() -> fault(c, "vlc reported an error"));
+  }
+
+  @Override
+  public void finished(MediaPlayer mp)
+  {
+    Clip c = watched(mp);
+    if(c != null)
+      c.done = true;
+  }
+
+  private Clip watched(MediaPlayer mp)
+  {
+    Clip c = clip;
+    return (c != null && c.player == mp && !c.done) ? c : null;
+  }
+
+  /**
+   * Looks at the watched clip (checker thread, once a second).
+   */
+  private void check()
+  {
+    try
+    {
+      Clip c = clip;
+      if(c == null || c.done)
+        return;
+      final long now = System.nanoTime();
+      if(c.progressNanos == 0L)
+      {
+        if(now - c.startNanos > START_NANOS)
+          fault(c, String.format("nothing shown after %ds", (now - c.startNanos) / 1_000_000_000L));
+        return;
+      }
+      if(now - c.progressNanos > STALL_NANOS)
+      {
+        health(c.mrl).stalls.incrementAndGet();
+        fault(c, String.format("stalled for %ds at %dms", (now - c.progressNanos) / 1_000_000_000L, c.lastTime));
+        return;
+      }
+      checkDrops(c);
+    }
+    catch(RuntimeException e)
+    {
+      log("check failed " + e.getMessage());
+    }
+  }
+
+  private void checkDrops(Clip c)
+  {
+    if(!c.player.media().info().statistics(statistics))
+      return;
+    if(c.checks++ == 0)
+    {
+      c.baseDecoded = statistics.decodedVideo();
+      c.baseLost = statistics.picturesLost();
+      return;
+    }
+    if(c.checks <= DROP_WINDOW_CHECKS)
+      return;
+
+    final int decoded = statistics.decodedVideo() - c.baseDecoded;
+    final int lost = statistics.picturesLost() - c.baseLost;
+    c.checks = 0;
+    if(decoded >= DROP_MIN_FRAMES && lost * 100L > (long) decoded * MAX_DROP_PERCENT)
+      fault(c, String.format("dropping frames (%d of %d lost)", lost, decoded));
+  }
+
+  /**
+   * Gives up on a clip: counts it against the file and skips it (once per clip).
+   */
+  private synchronized void fault(Clip c, String reason)
+  {
+    if(c != clip || c.done)
+      return;
+    c.done = true;
+    Health h = health(c.mrl);
+    int faults = h.faults.incrementAndGet();
+    log(String.format("%s: %s, skipping it (%d faults).", c.mrl, reason, faults));
+    if(faults >= QUARANTINE_AFTER && quarantined.add(key(c.mrl)))
+    {
+      log("quarantined " + c.mrl + ", it won't be played again until it changes.");
+      saveQuarantine();
+    }
+    skips.incrementAndGet();
+    skip.run();
+  }
+
+  private Health health(String mrl)
+  {
+    return health.computeIfAbsent(mrl, k -> new Health());
+  }
+
+  /** Returns what we know about every clip played so far (read only). */
+  public Map<String, Health> health() { return Collections.unmodifiableMap(health); }
+
+  public long skips() { return skips.get(); }
+
+  /** Key of a file in the quarantine list (path and mtime). */
+  private static String key(String mrl)
+  {
+    File file = new File(mrl);
+    return file.getAbsolutePath() + "|" + file.lastModified();
+  }
+
+  private void loadQuarantine()
+  {
+    if(!Files.exists(quarantineFile))
+      return;
+    try
+    {
+      for(String line : Files.readAllLines(quarantineFile, StandardCharsets.UTF_8))
+        if(!line.isBlank())
+          quarantined.add(line);
+      if(!quarantined.isEmpty())
+        log(quarantined.size() + " quarantined clips won't be played.");
+    }
+    catch(IOException e)
+    {
+      log("failed to read quarantine list " + quarantineFile + " " + e.getMessage());
+    }
+  }
+
+  private void saveQuarantine()
+  {
+    try
+    {
+      Files.write(quarantineFile, new ArrayList<>(quarantined), StandardCharsets.UTF_8);
+    }
+    catch(IOException e)
+    {
+      log("failed to save quarantine list " + quarantineFile + " " + e.getMessage());
+    }
+  }
+
+  /**
+   * What the watchdog knows about one clip (across plays).
+   */
+  public static class Health
+  {
+    final AtomicLong plays = new AtomicLong();
+    final AtomicLong stalls = new AtomicLong();
+    final AtomicInteger faults = new AtomicInteger();
+    volatile long lastTtffMillis = -1L;
+
+    public long plays() { return plays.get(); }
+    public long stalls() { return stalls.get(); }
+    public int faults() { return faults.get(); }
+    /** Time to first frame of the last play in millis (-1 if it never showed one). */
+    public long lastTtffMillis() { return lastTtffMillis; }
+
+    @Override
+    public String toString()
+    {
+      return String.format("plays %d, ttff %dms, stalls %d, faults %d", plays(), lastTtffMillis, stalls(), faults());
+    }
+  }
+
+  /**
+   * One play of a clip.
+   */
+  private static class Clip
+  {
+    final String mrl;
+    final MediaPlayer player;
+    final long startNanos;
+    volatile long firstFrameNanos;
+    volatile long progressNanos;
+    volatile long lastTime = -1L;
+    volatile boolean done;
+    //drop rate window, checker thread only.
+    int checks;
+    int baseDecoded;
+    int baseLost;
+
+    Clip(String mrl, MediaPlayer player, long startNanos)
+    {
+      this.mrl = mrl;
+      this.player = player;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[PlaybackWatchdog] " + message);
+  }
+}
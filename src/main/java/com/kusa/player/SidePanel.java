@@ -13,11 +13,13 @@ import org.imgscalr.Scalr;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
 
 //might be able to remove these.
 import javax.swing.BorderFactory;
 import java.awt.GridLayout;
 
+import com.kusa.service.ImageCache;
 import com.kusa.service.LocalService;
 import com.kusa.Config;
 
@@ -25,20 +27,57 @@ import java.time.LocalDateTime;
 import java.time.DayOfWeek;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Locale;
 
 /**
  * Class for managing a side panel of an engagment frame.
  *
  * right now this class only works by displaying an image from
- * a path specified in the constructor. in the future i want to extend
- * functionality to allow for creating panels with custom text as well.
+ * a path specified in the constructor. custom text lives in its own
+ * panel type, see TickerPanel.
  */
 public class SidePanel extends JPanel
 {
-  private BufferedImage originalImage;
+  private static final long serialVersionUID = 1L;
+
+  //scaled photos shared by every side panel.
+  private static final ImageCache imageCache = new ImageCache();
+
+  /* transitions between images.
+   * 'panelTransition' none (instant swap, default), crossfade or slide.
+   * 'panelTransitionMillis' how long a transition takes (default 800).
+   * 'panelTransitionFps' frame rate of the transition (default 30).
+   */
+  private static final TransitionCanvas.Mode TRANSITION = parseTransition(Config.getProperty("panelTransition", "none"));
+  private static final int TRANSITION_MILLIS = Integer.parseInt(Config.getProperty("panelTransitionMillis", "800"));
+  private static final int TRANSITION_FPS = Integer.parseInt(Config.getProperty("panelTransitionFps", "30"));
+
   private Image scaledImage;
   private ImageIcon icon;
   private JLabel imageLabel;
+  //custom painted panel, only used when a transition is configured.
+  private TransitionCanvas canvas;
+  private final int panelWidth;
+  private final int panelHeight;
+
+  /**
+   * Reads a transition in any case ("Crossfade", " slide").
+   *
+   * a typo in the properties shouldn't take the panels down, anything we
+   * don't know is logged and images swap instantly.
+   */
+  static TransitionCanvas.Mode parseTransition(String value)
+  {
+    try
+    {
+      return TransitionCanvas.Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+    catch(IllegalArgumentException | NullPointerException e)
+    {
+      System.out.println("[SidePanel] unknown panelTransition '" + value + "' (none, crossfade or slide), using none.");
+      return TransitionCanvas.Mode.NONE;
+    }
+  }
 
   /**
    * Constructs a side panel with the default dimensions.
@@ -60,6 +99,8 @@ public class SidePanel extends JPanel
   {
     //layout (border layout might not be best)
     setLayout(new BorderLayout());
+    panelWidth = width;
+    panelHeight = height;
 
     /*
      * LOADING IMAGE.
@@ -75,8 +116,7 @@ public class SidePanel extends JPanel
      * previous scaling code: scaledImage = originalImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
      */
     try{
-      originalImage = ImageIO.read(new File(path));
-      scaledImage = Scalr.resize(originalImage, Scalr.Method.BALANCED, Scalr.Mode.FIT_EXACT, width, height);
+      scaledImage = imageCache.get(path, width, height);
     }catch(Exception e)
     {
       System.out.println("[SidePanel] IMAGE " + path + " FAILED TO LOAD");
@@ -92,7 +132,13 @@ public class SidePanel extends JPanel
     imageLabel.setOpaque(true);
     imageLabel.setBackground(Color.BLACK);
 
-    add(imageLabel, BorderLayout.CENTER); 
+    if(TRANSITION == TransitionCanvas.Mode.NONE)
+      add(imageLabel, BorderLayout.CENTER); 
+    else
+    {
+      canvas = new TransitionCanvas(scaledImage, width, height, TRANSITION, TRANSITION_MILLIS, TRANSITION_FPS);
+      add(canvas, BorderLayout.CENTER);
+    }
   }
 
   /**
@@ -101,29 +147,90 @@ public class SidePanel extends JPanel
    * if it fails to load the new image it will
    * just stick to the image it currently has.
    *
-   * we have a Task for using this function i just havent
-   * found the best place to use it.
+   * same as prepareImage + showImage, so don't call it on the EDT.
    * 
    * @param path path of new image to be displayed.
    */
   public void setImage(String path)
   {
-    BufferedImage newImage;
-    Image newScaledImage;
-    int width = imageLabel.getIcon().getIconWidth();
-    int height = imageLabel.getIcon().getIconHeight();
+    showImage(prepareImage(path));
+  }
+
+  /**
+   * Decodes and scales an image so it's ready to be shown.
+   *
+   * this is the slow part, call it from a background thread
+   * (NEVER the EDT), ideally well before the image is needed.
+   *
+   * @param path path of the image.
+   * @return the prepared image or null if it failed to load.
+   */
+  public PreparedImage prepareImage(String path)
+  {
     try{
-      newImage = ImageIO.read(new File(path));
-      newScaledImage = Scalr.resize(newImage, Scalr.Method.BALANCED, Scalr.Mode.FIT_EXACT, width, height);
+      Image newScaledImage = imageCache.get(path, panelWidth, panelHeight);
       //newScaledImage = Scalr.resize(newImage, Scalr.Method.BALANCED, Scalr.Mode.FIT_TO_WIDTH, width);
-      ImageIcon newIcon = new ImageIcon(newScaledImage);
-      imageLabel.setIcon(newIcon);
+      return new PreparedImage(path, new ImageIcon(newScaledImage));
     }catch(Exception e)
     {
-      System.out.println("[SidePanel] FAILED TO SET NEW IMAGE: " + path);
+      System.out.println("[SidePanel] FAILED TO PREPARE IMAGE: " + path);
+      return null;
     }
   }
 
+  /**
+   * Swaps a prepared image onto the panel.
+   *
+   * the swap itself is queued on the EDT and is just a setIcon,
+   * the image is already decoded and scaled.
+   *
+   * @param image image from prepareImage (null keeps the current image).
+   */
+  public void showImage(PreparedImage image)
+  {
+    if(image == null)
+      return;
+    SwingUtilities.invokeLater(() -> {
+      long start = System.nanoTime();
+      if(canvas != null)
+        canvas.transitionTo(image.icon.getImage());
+      else
+        imageLabel.setIcon(image.icon);
+      long micros = (System.nanoTime() - start) / 1000;
+      if(micros > 16_000)
+        System.out.printf("[SidePanel] slow image swap %dus for %s%n", micros, image.path);
+    });
+  }
+
+  /**
+   * An image decoded and scaled for this panel, ready to swap in.
+   */
+  public static class PreparedImage
+  {
+    private final String path;
+    private final ImageIcon icon;
+
+    PreparedImage(String path, ImageIcon icon)
+    {
+      this.path = path;
+      this.icon = icon;
+    }
+
+    public String path() { return path; }
+  }
+
+  /** Returns a one line summary of the transition frames for the logs (empty without transitions). */
+  public String transitionStats()
+  {
+    if(canvas == null)
+      return "";
+    return String.format("%s frames %d, dropped %d, instant swaps %d", TRANSITION.name().toLowerCase(),
+        canvas.frames(), canvas.droppedFrames(), canvas.abortedTransitions());
+  }
+
+  /** Returns the cache of scaled photos (hit/miss and decode stats). */
+  public static ImageCache imageCache() { return imageCache; }
+
   /**
    * Returns the mrls for side panels of the day.
    *
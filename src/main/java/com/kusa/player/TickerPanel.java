@@ -0,0 +1,257 @@
+package com.kusa.player;
+
+import com.kusa.Config;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Class for a scrolling text (ticker) panel, prices and promos.
+ *
+ * the text is laid out ONCE into a strip image. every frame just draws
+ * that strip at a new offset, nothing is laid out or allocated while it
+ * scrolls (so no gc pauses next to the video).
+ *
+ * the text comes from a file in the download path ('tickerFile',
+ * default ticker.txt). the file is checked every few seconds and the strip is rebuilt off
+ * the EDT when it changes. every line of the file is one message.
+ * the strip is at most MAX_STRIP_WIDTH pixels wide, messages past that
+ * are dropped (logged) so one long file can't allocate a huge image.
+ *
+ * properties:
+ *  - 'tickerFile' file name inside downloadPath (default ticker.txt).
+ *  - 'tickerSpeed' pixels per second (default 120).
+ *  - 'tickerFps' frame rate (default 60).
+ *  - 'tickerForeground' / 'tickerBackground' hex colors (default ffffff / 000000).
+ */
+public class TickerPanel extends JComponent
+{
+  private static final long serialVersionUID = 1L;
+
+  static final String SEPARATOR = "     \u2022     ";
+  private static final int RELOAD_SECONDS = 5;
+  //also below the texture size limit of small gpus (pi).
+  private static final int MAX_STRIP_WIDTH = 8192;
+
+  private final File textFile;
+  private final int speed;
+  private final Font font;
+  private final Color foreground;
+  private final Color background;
+  private final Timer timer;
+  private final ScheduledExecutorService reloader;
+
+  //only touched on the EDT.
+  private BufferedImage strip;
+  private int stripWidth;
+  private long startNanos;
+
+  //only touched by the reload thread.
+  private long loadedModified;
+  private long loadedSize;
+
+  /**
+   * Constructs a ticker panel.
+   *
+   * @param width width of the panel (usually the screen width).
+   * @param height height of the panel, the font is sized from it.
+   */
+  public TickerPanel(int width, int height)
+  {
+    this.textFile = new File(Config.getProperty("downloadPath") + Config.getProperty("tickerFile", "ticker.txt"));
+    this.speed = Integer.parseInt(Config.getProperty("tickerSpeed", "120"));
+    this.font = new Font(Font.SANS_SERIF, Font.BOLD, Math.max(8, height * 3 / 5));
+    this.foreground = parseColor("tickerForeground", Config.getProperty("tickerForeground", "ffffff"), Color.WHITE);
+    this.background = parseColor("tickerBackground", Config.getProperty("tickerBackground", "000000"), Color.BLACK);
+    this.loadedModified = -1L;
+    this.loadedSize = -1L;
+
+    setPreferredSize(new Dimension(width, height));
+    setOpaque(true);
+
+    int fps = Math.max(1, Integer.parseInt(Config.getProperty("tickerFps", "60")));
+    this.timer = new Timer(1000 / fps, e -> repaint());
+    this.timer.setCoalesce(true);
+
+    this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "ticker-reload");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Reads a hex color ("ffcc00", "#ffcc00").
+   *
+   * a typo in the properties shouldn't take the ticker down, anything we
+   * can't read is logged and the default color is used.
+   */
+  static Color parseColor(String property, String value, Color fallback)
+  {
+    try
+    {
+      String hex = value.trim();
+      if(hex.startsWith("#"))
+        hex = hex.substring(1);
+      return new Color(Integer.parseInt(hex, 16));
+    }
+    catch(NumberFormatException | NullPointerException e)
+    {
+      System.out.println("[TickerPanel] unknown " + property + " '" + value + "' (hex like ffffff), using the default.");
+      return fallback;
+    }
+  }
+
+  /** Starts scrolling and watching the text file. */
+  public void start()
+  {
+    reloader.scheduleWithFixedDelay(this::reload, 0L, RELOAD_SECONDS, TimeUnit.SECONDS);
+    startNanos = System.nanoTime();
+    timer.start();
+  }
+
+  public void stop()
+  {
+    timer.stop();
+    reloader.shutdownNow();
+  }
+
+  /**
+   * Rebuilds the strip if the text file changed (runs on the reload thread).
+   */
+  private void reload()
+  {
+    try
+    {
+      long modified = textFile.exists() ? textFile.lastModified() : 0L;
+      long size = textFile.exists() ? textFile.length() : 0L;
+      if(modified == loadedModified && size == loadedSize)
+        return;
+      loadedModified = modified;
+      loadedSize = size;
+
+      String text = "";
+      if(textFile.exists())
+      {
+        List<String> lines = Files.readAllLines(textFile.toPath(), StandardCharsets.UTF_8);
+        lines.removeIf(String::isBlank);
+        text = String.join(SEPARATOR, lines).trim();
+      }
+      final BufferedImage newStrip = text.isEmpty() ? null : layout(text + SEPARATOR);
+      log(text.isEmpty() ? "no ticker text, panel is blank." : "loaded ticker text: " + text);
+      SwingUtilities.invokeLater(() -> {
+        if(strip != null)
+          strip.flush();
+        strip = newStrip;
+        stripWidth = (newStrip == null) ? 0 : newStrip.getWidth();
+        startNanos = System.nanoTime();
+        repaint();
+      });
+    }
+    catch(IOException e)
+    {
+      log("failed to read ticker text " + textFile + " " + e.getMessage());
+    }
+    catch(RuntimeException e)
+    {
+      //an uncaught exception would cancel the reload task for good.
+      log("failed to lay out ticker text " + textFile + " " + e);
+    }
+  }
+
+  /**
+   * Lays the text out once and renders it into an image the size of the text
+   * (at least as wide as the panel, so two draws always cover it).
+   *
+   * text that doesn't fit in MAX_STRIP_WIDTH is cut after the last whole
+   * message that does.
+   */
+  private BufferedImage layout(String text)
+  {
+    final int height = getPreferredSize().height;
+    final int panelWidth = getPreferredSize().width;
+    FontRenderContext frc = new FontRenderContext(null, true, true);
+    TextLayout layout = new TextLayout(fit(text, font, frc, MAX_STRIP_WIDTH), font, frc);
+    int width = Math.max(panelWidth, Math.min(MAX_STRIP_WIDTH, (int) Math.ceil(layout.getAdvance())));
+
+    //a screen compatible image is blitted without any conversion.
+    GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    BufferedImage image = gc.createCompatibleImage(width, height, Transparency.OPAQUE);
+    Graphics2D g = image.createGraphics();
+    try
+    {
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+      g.setColor(background);
+      g.fillRect(0, 0, width, height);
+      g.setColor(foreground);
+      float baseline = (height - (layout.getAscent() + layout.getDescent())) / 2f + layout.getAscent();
+      layout.draw(g, 0f, baseline);
+    }
+    finally
+    {
+      g.dispose();
+    }
+    return image;
+  }
+
+  /**
+   * Returns the text cut to fit in maxWidth pixels (after the last whole
+   * message that fits, or mid message if not even the first one does).
+   */
+  static String fit(String text, Font font, FontRenderContext frc, int maxWidth)
+  {
+    TextLayout layout = new TextLayout(text, font, frc);
+    if(layout.getAdvance() <= maxWidth)
+      return text;
+    int fits = layout.hitTestChar(maxWidth, 0f).getCharIndex();
+    int cut = text.lastIndexOf(SEPARATOR, fits - SEPARATOR.length());
+    String kept = (cut > 0 ? text.substring(0, cut) : text.substring(0, Math.max(1, fits - SEPARATOR.length()))) + SEPARATOR;
+    System.out.println(String.format("[TickerPanel] ticker text is too long (%.0fpx, max %dpx), only showing the first %d of %d characters.",
+          layout.getAdvance(), maxWidth, kept.length() - SEPARATOR.length(), text.length()));
+    return kept;
+  }
+
+  @Override
+  protected void paintComponent(Graphics g)
+  {
+    if(strip == null)
+    {
+      g.setColor(background);
+      g.fillRect(0, 0, getWidth(), getHeight());
+      return;
+    }
+
+    //time based so a late frame doesn't slow the text down.
+    long travelled = (System.nanoTime() - startNanos) / 1000L * speed / 1_000_000L;
+    int x = -(int) (travelled % stripWidth);
+    g.drawImage(strip, x, 0, null);
+    if(x + stripWidth < getWidth())
+      g.drawImage(strip, x + stripWidth, 0, null);
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[TickerPanel] " + message);
+  }
+}
@@ -0,0 +1,205 @@
+package com.kusa.player;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.image.VolatileImage;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * Component that shows an image and animates changing it.
+ *
+ * frames are drawn into a VolatileImage back buffer (video memory when
+ * the platform has it) and then copied to the screen in one blit.
+ * the animation is time based, it runs at a fixed frame rate and a
+ * late frame doesn't make the transition longer.
+ *
+ * every frame has a budget (1000 / fps millis). a frame that misses it
+ * is counted as dropped, and if two frames in a row miss it we give up
+ * on the animation and just show the new image (instant swap).
+ *
+ * only touch this on the EDT.
+ */
+public class TransitionCanvas extends JComponent
+{
+  private static final long serialVersionUID = 1L;
+
+  public enum Mode { NONE, CROSSFADE, SLIDE }
+
+  private final Mode mode;
+  private final long durationNanos;
+  private final long budgetNanos;
+  private final Timer timer;
+
+  private VolatileImage backBuffer;
+  private Image current;
+  private Image previous;
+  private long startNanos;
+  private long lastTickNanos;
+  private int lateInARow;
+
+  private volatile long frames;
+  private volatile long droppedFrames;
+  private volatile long abortedTransitions;
+
+  public TransitionCanvas(Image initial, int width, int height, Mode mode, int durationMillis, int fps)
+  {
+    this.mode = mode;
+    this.durationNanos = Math.max(1, durationMillis) * 1_000_000L;
+    this.budgetNanos = 1_000_000_000L / Math.max(1, fps);
+    this.current = initial;
+    this.previous = null;
+    this.timer = new Timer((int) (budgetNanos / 1_000_000L), e -> tick());
+    this.timer.setCoalesce(true);
+    setPreferredSize(new Dimension(width, height));
+    setOpaque(true);
+    setDoubleBuffered(false); //we have our own back buffer.
+  }
+
+  /**
+   * Starts the transition to a new image (a running transition is finished first).
+   */
+  public void transitionTo(Image next)
+  {
+    if(timer.isRunning())
+      finish();
+    previous = current;
+    current = next;
+    if(mode == Mode.NONE || previous == null)
+    {
+      previous = null;
+      repaint();
+      return;
+    }
+    startNanos = System.nanoTime();
+    lastTickNanos = startNanos;
+    lateInARow = 0;
+    timer.start();
+  }
+
+  private void tick()
+  {
+    long now = System.nanoTime();
+    //the timer fired late, so the last frame (or the one before it) missed its slot.
+    if(now - lastTickNanos > 2 * budgetNanos)
+      late();
+    lastTickNanos = now;
+
+    if(now - startNanos >= durationNanos)
+    {
+      finish();
+      return;
+    }
+    paintImmediately(0, 0, getWidth(), getHeight());
+    if(System.nanoTime() - now > budgetNanos)
+      late();
+    else
+      lateInARow = 0;
+  }
+
+  private void late()
+  {
+    droppedFrames++;
+    if(++lateInARow >= 2 && previous != null)
+    {
+      abortedTransitions++;
+      System.out.printf("[TransitionCanvas] missing frame deadlines, swapping instantly (%d dropped so far)%n", droppedFrames);
+      finish();
+    }
+  }
+
+  private void finish()
+  {
+    timer.stop();
+    previous = null;
+    repaint();
+  }
+
+  @Override
+  protected void paintComponent(Graphics g)
+  {
+    final int w = getWidth();
+    final int h = getHeight();
+    if(w <= 0 || h <= 0)
+      return;
+
+    GraphicsConfiguration gc = getGraphicsConfiguration();
+    do
+    {
+      if(backBuffer == null || backBuffer.getWidth() != w || backBuffer.getHeight() != h
+          || (gc != null && backBuffer.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE))
+      {
+        if(backBuffer != null)
+          backBuffer.flush();
+        backBuffer = createVolatileImage(w, h);
+        if(backBuffer == null)
+        {
+          //not displayable yet, draw straight to the screen.
+          render((Graphics2D) g, w, h);
+          return;
+        }
+      }
+
+      Graphics2D bg = backBuffer.createGraphics();
+      try
+      {
+        render(bg, w, h);
+      }
+      finally
+      {
+        bg.dispose();
+      }
+      g.drawImage(backBuffer, 0, 0, null);
+    } while(backBuffer.contentsLost());
+    frames++;
+  }
+
+  private void render(Graphics2D g, int w, int h)
+  {
+    g.setComposite(AlphaComposite.Src);
+    g.setColor(Color.BLACK);
+    g.fillRect(0, 0, w, h);
+
+    float t = (previous == null) ? 1f : Math.min(1f, (System.nanoTime() - startNanos) / (float) durationNanos);
+    if(previous == null)
+    {
+      draw(g, current, 0);
+      return;
+    }
+
+    switch(mode)
+    {
+      case SLIDE:
+        int offset = Math.round(t * w);
+        draw(g, previous, -offset);
+        draw(g, current, w - offset);
+        break;
+      case CROSSFADE:
+      default:
+        draw(g, previous, 0);
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, t));
+        draw(g, current, 0);
+        break;
+    }
+  }
+
+  private void draw(Graphics2D g, Image image, int x)
+  {
+    if(image == null)
+      return;
+    //center it, same as the label did.
+    int ix = x + (getWidth() - image.getWidth(null)) / 2;
+    int iy = (getHeight() - image.getHeight(null)) / 2;
+    g.drawImage(image, ix, iy, null);
+  }
+
+  //stats.
+  public long frames() { return frames; }
+  public long droppedFrames() { return droppedFrames; }
+  public long abortedTransitions() { return abortedTransitions; }
+}
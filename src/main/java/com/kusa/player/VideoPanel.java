@@ -1,17 +1,28 @@
 package com.kusa.player;
 
 import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
-import uk.co.caprica.vlcj.player.component.CallbackMediaPlayerComponent;
 import uk.co.caprica.vlcj.player.base.MediaPlayer;
 import uk.co.caprica.vlcj.player.base.events.MediaPlayerEvent;
 import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
+import uk.co.caprica.vlcj.player.embedded.EmbeddedMediaPlayer;
 import com.kusa.service.LocalService;
+import com.kusa.service.MediaIndex;
+import com.kusa.service.MediaValidator;
 import com.kusa.service.GDriveService;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.awt.BorderLayout;
+import java.awt.Canvas;
+import java.awt.CardLayout;
+import java.awt.Color;
+import javax.swing.SwingUtilities;
 import com.kusa.playlist.Playlist;
 import java.time.LocalDateTime;
 import java.time.DayOfWeek;
@@ -24,13 +35,58 @@ import com.kusa.Config;
  *
  * this class extends vlcjs embedded media player component for
  * access to vlc bindings.
+ *
+ * with 'gaplessVideo=true' a second (standby) media player made from the
+ * same factory sits behind the visible one. as soon as a clip starts the
+ * next one is loaded paused in the standby player, so when the clip ends
+ * we just start the standby player and flip the surfaces, there is no
+ * black frame while vlc opens the file. the switch latency is logged.
+ *
+ * with 'compositeVideo=true' vlc renders into a CallbackVideoView instead
+ * of a native window, so the video is painted by swing with everything
+ * else in the frame (and things can be drawn over it).
+ *
+ * the playlist is only touched by one worker thread. while a clip plays
+ * the worker refreshes the playlist and picks the next track, so when vlc
+ * says a clip finished the callback just takes that track and plays it.
+ *
+ * a PlaybackWatchdog skips to that same track when a clip hangs.
  */
 public class VideoPanel extends EmbeddedMediaPlayerComponent 
 {
+  private static final String[] PLAY_OPTIONS = { "--avcodec-hw=mmal", "--no-xlib", "--no-osd", "--no-interact", "--no-video-filter", "--quiet" };
+  private static final boolean GAPLESS = Boolean.parseBoolean(Config.getProperty("gaplessVideo", "false"));
+  private static final boolean COMPOSITED = Boolean.parseBoolean(Config.getProperty("compositeVideo", "false"));
+
   private Playlist playlist;
 
   //gds is injected to the video panel but currently we don't use it.
   private GDriveService gds;
+
+  //set by the media index when a video shows up, so we only look for new videos when there are some.
+  private final AtomicBoolean newVideos = new AtomicBoolean(true);
+
+  //composited mode only (null otherwise).
+  private CallbackVideoView view;
+  private CallbackVideoView.Surface primarySurface;
+  private CallbackVideoView.Surface standbySurface;
+
+  //gapless mode only (null otherwise).
+  private EmbeddedMediaPlayer standby;
+  private CardLayout cards;
+
+  //playlist upkeep runs here, the libvlc callbacks only take 'upcoming'.
+  private final ExecutorService worker;
+  private final AtomicReference<Upcoming> upcoming = new AtomicReference<>();
+
+  //skips clips that stall, error out or drop most of their frames.
+  private final PlaybackWatchdog watchdog = new PlaybackWatchdog(this::playNext);
+
+  //the player that is on screen, and the mrl loaded paused in the other one.
+  private volatile MediaPlayer active;
+  private volatile String preparedMrl;
+  //when the last switch to the standby player started (0 when none is pending).
+  private volatile long switchStart;
   
   /**
    * Constructs a video panel for use in an engagment frame.
@@ -46,57 +102,267 @@ public class VideoPanel extends EmbeddedMediaPlayerComponent
 
     setOpaque(true); //maybe remove?
 
+    final String videosDir = java.nio.file.Paths.get(LocalService.videosPath).toAbsolutePath().normalize().toString();
+    LocalService.index().subscribe((kind, path) -> {
+      if(kind == MediaIndex.Kind.ADDED && path.startsWith(videosDir))
+        newVideos.set(true);
+    });
+    //a video only goes in the playlist once it passed validation.
+    LocalService.validator().subscribe((path, verdict) -> {
+      if(verdict == MediaValidator.Verdict.VALID && path.startsWith(videosDir))
+        newVideos.set(true);
+    });
+
+    active = mediaPlayer();
+    if(COMPOSITED)
+      setupComposited();
+    if(GAPLESS)
+      setupStandby();
+
+    this.worker = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "video-playlist");
+      t.setDaemon(true);
+      return t;
+    });
+
     //we setup a event adapter to automatically play the next video in a playlist
-    //once a video ends.
-    mediaPlayer().events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
+    //once a video ends. this runs on a libvlc thread, so it only takes the
+    //track the worker already picked, everything else happens on the worker.
+    MediaPlayerEventAdapter events = new MediaPlayerEventAdapter() {
+      @Override
+      public void playing(MediaPlayer mp)
+      {
+        final long start = switchStart;
+        if(mp != active || start == 0L)
+          return;
+        switchStart = 0L;
+        log(String.format("gapless switch took %.1fms.", (System.nanoTime() - start) / 1_000_000d));
+      }
+
       @Override
       public void finished(MediaPlayer mp)
       {
-        if(playlist.isEmpty())
-          log("WARNING the video panel playlist is empty!!!");
-
-        log("a video just finished.");
-        Set<String> driveMrls = new HashSet<>();
-
-        boolean willShuffle = false;
-        if(playlist.index() == 0)
-        {
-          log("playlist ended! calling clear...");
-          playlist.clear();
-          willShuffle = true;
-        }
-
-        Set<String> mrls = videoMRLS();
-        Set<String> currentTracks = new HashSet<>(playlist.trackList());
-        for(String video : mrls)
-        {
-          if(!currentTracks.contains(video))
-          {
-            log(String.format("found new video! adding %s to playlist.", video));
-            playlist.add(video);
-          }
-        }
-
-        if(willShuffle)
-        {
-          log("Shuffling Playlist!");
-          playlist.shuffle();
-
-          log(String.format("Start of new playlist! Index = ", playlist.index()));
-          List<String> tracks = playlist.trackList();
-          for(int i = 0; i < tracks.size(); i++)
-            log(String.format(" [%d] : %s", i, tracks.get(i)));
-        }
-
-        final int idx = playlist.index();
-        final String mrl = playlist.next();
-
-        mediaPlayer().submit(() -> mediaPlayer().media().play(mrl, "--avcodec-hw=mmal", "--no-xlib", "--no-osd", "--no-interact", "--no-video-filter", "--quiet"));
-
-        log(String.format("Now playing:\n [index]%d\n [vid]:%s", idx, mrl));
-        log(String.format("Next index should be %d", playlist.index()));
+        //the standby player never plays to the end, but just in case.
+        if(mp != active)
+          return;
+
+        playNext();
       }
-    });
+    };
+    mediaPlayer().events().addMediaPlayerEventListener(events);
+    mediaPlayer().events().addMediaPlayerEventListener(watchdog);
+    if(standby != null)
+    {
+      standby.events().addMediaPlayerEventListener(events);
+      standby.events().addMediaPlayerEventListener(watchdog);
+    }
+    watchdog.start();
+  }
+
+  /**
+   * Plays the track the worker picked (the clip ended or the watchdog gave up on it).
+   */
+  private void playNext()
+  {
+    final Upcoming next = upcoming.getAndSet(null);
+    if(next != null)
+    {
+      start(next);
+      worker.execute(() -> afterStart(next));
+    }
+    else
+    {
+      //the worker is still picking (very short clip), let it play it when done.
+      worker.execute(() -> {
+        Upcoming late = upcoming.getAndSet(null);
+        if(late == null)
+          late = advance();
+        start(late);
+        afterStart(late);
+      });
+    }
+  }
+
+  /**
+   * A track picked ahead of time (index it had in the playlist and its mrl).
+   */
+  private static class Upcoming
+  {
+    final int index;
+    final String mrl;
+
+    Upcoming(int index, String mrl)
+    {
+      this.index = index;
+      this.mrl = mrl;
+    }
+  }
+
+  /**
+   * Plays a picked track, on whichever player should show it.
+   *
+   * cheap, this is what runs on the libvlc callback thread.
+   */
+  private void start(Upcoming next)
+  {
+    if(standby != null && next.mrl.equals(preparedMrl))
+      switchToStandby();
+    else
+    {
+      final MediaPlayer player = active;
+      player.submit(() -> player.media().play(next.mrl, PLAY_OPTIONS));
+    }
+    watchdog.started(next.mrl, active);
+  }
+
+  /**
+   * Bookkeeping after a track started, then picks the one after it (worker thread).
+   */
+  private void afterStart(Upcoming started)
+  {
+    LocalService.markPlayed(started.mrl);
+    log(String.format("Now playing:\n [index]%d\n [vid]:%s", started.index, started.mrl));
+
+    Upcoming next = advance();
+    upcoming.set(next);
+    log(String.format("Next up is [index]%d %s", next.index, next.mrl));
+    prepareNext(next.mrl);
+  }
+
+  /**
+   * Refreshes the playlist if needed and takes the next track off it (worker thread).
+   *
+   * at the end of a loop the playlist is cleared, refilled and shuffled.
+   * otherwise we only look for new videos when the index saw some.
+   */
+  private Upcoming advance()
+  {
+    if(playlist.isEmpty())
+      log("WARNING the video panel playlist is empty!!!");
+
+    //end of a loop: bring the playlist up to date and shuffle it.
+    final boolean willShuffle = playlist.index() == 0;
+
+    //an unchanged library means nothing to sync (without the index we always look).
+    if(newVideos.getAndSet(false) || willShuffle || !LocalService.index().isReady())
+    {
+      Set<String> wanted = new HashSet<>();
+      for(String video : videoMRLS())
+        if(!watchdog.isQuarantined(video) && LocalService.validator().isValid(video))
+          wanted.add(video);
+      final int before = playlist.size();
+      if(playlist.sync(wanted))
+        log(String.format("synced playlist with the videos folder, %d videos (was %d).", playlist.size(), before));
+    }
+
+    if(willShuffle)
+    {
+      log("Shuffling Playlist!");
+      playlist.shuffle();
+
+      log(String.format("Start of new playlist! Index = %d", playlist.index()));
+      List<String> tracks = playlist.trackList();
+      for(int i = 0; i < tracks.size(); i++)
+        log(String.format(" [%d] : %s", i, tracks.get(i)));
+      log(String.format("loop length is about %ds (from probed durations).", LocalService.probe().totalDurationMs(tracks) / 1000));
+    }
+
+    int idx = playlist.index();
+    String mrl = playlist.next();
+    //clips the watchdog gave up on for good don't come back.
+    while(!mrl.isEmpty() && watchdog.isQuarantined(mrl))
+    {
+      log("skipping quarantined video " + mrl);
+      playlist.remove(mrl);
+      idx = playlist.index();
+      mrl = playlist.next();
+    }
+    return new Upcoming(idx, mrl);
+  }
+
+  /**
+   * Swaps the native video window for a lightweight view vlc renders into.
+   */
+  private void setupComposited()
+  {
+    view = new CallbackVideoView();
+    primarySurface = view.newSurface();
+    mediaPlayer().videoSurface().set(mediaPlayerFactory().videoSurfaces().newVideoSurface(primarySurface, primarySurface, true));
+    removeAll();
+    setLayout(new BorderLayout());
+    add(view, BorderLayout.CENTER);
+    view.show(primarySurface);
+    log("composited mode on, video is painted with the panels.");
+  }
+
+  /**
+   * Creates the standby player and gives it a surface next to the main one.
+   *
+   * both players come from the factory of this component, so libvlc is
+   * only loaded once. with the native window the two surfaces sit in a
+   * card layout, composited they are two surfaces of the same view.
+   */
+  private void setupStandby()
+  {
+    standby = mediaPlayerFactory().mediaPlayers().newEmbeddedMediaPlayer();
+    if(view != null)
+    {
+      standbySurface = view.newSurface();
+      standby.videoSurface().set(mediaPlayerFactory().videoSurfaces().newVideoSurface(standbySurface, standbySurface, true));
+      log("gapless mode on, using a standby player.");
+      return;
+    }
+
+    Canvas standbyCanvas = new Canvas();
+    standbyCanvas.setBackground(Color.BLACK);
+    standby.videoSurface().set(mediaPlayerFactory().videoSurfaces().newVideoSurface(standbyCanvas));
+
+    cards = new CardLayout();
+    removeAll();
+    setLayout(cards);
+    add(videoSurfaceComponent(), "primary");
+    add(standbyCanvas, "standby");
+    cards.show(this, "primary");
+    log("gapless mode on, using a standby player.");
+  }
+
+  /** Returns the player that isn't on screen (gapless mode only). */
+  private MediaPlayer idle()
+  {
+    return (active == mediaPlayer()) ? standby : mediaPlayer();
+  }
+
+  /**
+   * Loads the next track paused in the idle player (gapless mode only).
+   */
+  private void prepareNext(String mrl)
+  {
+    if(standby == null || mrl.isEmpty())
+      return;
+    final MediaPlayer idle = idle();
+    preparedMrl = mrl;
+    idle.submit(() -> idle.media().startPaused(mrl, PLAY_OPTIONS));
+  }
+
+  /**
+   * Starts the prepared track in the idle player and flips the surfaces.
+   *
+   * the old player is stopped after the flip, it becomes the standby.
+   */
+  private void switchToStandby()
+  {
+    final MediaPlayer previous = active;
+    final MediaPlayer next = idle();
+    final String card = (next == mediaPlayer()) ? "primary" : "standby";
+    switchStart = System.nanoTime();
+    active = next;
+    preparedMrl = null;
+    next.submit(() -> next.controls().play());
+    if(view != null)
+      view.show(next == mediaPlayer() ? primarySurface : standbySurface);
+    else
+      SwingUtilities.invokeLater(() -> cards.show(this, card));
+    previous.submit(() -> previous.controls().stop());
   }
 
   /**
@@ -111,10 +377,28 @@ public class VideoPanel extends EmbeddedMediaPlayerComponent
    */
   public void play()
   {
-    final int idx = playlist.index();
-    final String mrl = playlist.next();
-    mediaPlayer().media().play(mrl);
-    log(String.format("Starting video panel.\n [index]:%d\n [vid]:%s", idx, mrl));
+    worker.execute(() -> {
+      final int idx = playlist.index();
+      final String mrl = playlist.next();
+      mediaPlayer().submit(() -> mediaPlayer().media().play(mrl));
+      watchdog.started(mrl, mediaPlayer());
+      log(String.format("Starting video panel.\n [index]:%d\n [vid]:%s", idx, mrl));
+      afterStart(new Upcoming(idx, mrl));
+    });
+  }
+
+  /** Returns the playback watchdog (per clip health). */
+  public PlaybackWatchdog watchdog() { return watchdog; }
+
+  /** Stops the playlist worker and watchdog, releases the standby player (if any) and then the component. */
+  @Override
+  public void release()
+  {
+    worker.shutdownNow();
+    watchdog.stop();
+    if(standby != null)
+      standby.release();
+    super.release();
   }
 
 
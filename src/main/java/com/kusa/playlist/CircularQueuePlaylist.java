@@ -3,6 +3,7 @@ package com.kusa.playlist;
 
 import com.kusa.Config; 
 import com.kusa.service.LocalService;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
@@ -66,6 +67,66 @@ public class CircularQueuePlaylist implements Playlist
     return true;
   }
 
+  /**
+   * Adds every mrl (not already in the playlist) to the end of playlist.
+   *
+   * existence is checked for the whole batch in one pass
+   * instead of once per track.
+   *
+   * @param newMrls Media Resource Links to be added.
+   * @return true if any mrl was added to playlist.
+   */
+  @Override
+  public boolean addAll(Collection<String> newMrls)
+  {
+    List<String> candidates = new ArrayList<>();
+    for(String mrl : newMrls)
+      if(!mrlSet.contains(mrl))
+        candidates.add(mrl);
+
+    boolean changed = false;
+    for(String mrl : LocalService.filesExist(candidates))
+    {
+      if(mrlSet.add(mrl))
+      {
+        mrls.add(mrl);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Makes the playlist hold exactly the given mrls (that exist).
+   *
+   * tracks not in the set are removed, new ones are added to the end.
+   * the index keeps pointing at the same upcoming track.
+   *
+   * @return true if the playlist changed.
+   */
+  @Override
+  public boolean sync(Set<String> wanted)
+  {
+    List<String> kept = new ArrayList<>();
+    int newIndex = 0;
+    for(int i = 0; i < mrls.size(); i++)
+    {
+      if(!wanted.contains(mrls.get(i)))
+        continue;
+      if(i < index)
+        newIndex++;
+      kept.add(mrls.get(i));
+    }
+    boolean changed = kept.size() != mrls.size();
+    if(changed)
+    {
+      mrls = kept;
+      mrlSet = new HashSet<>(kept);
+      index = newIndex;
+    }
+    return addAll(wanted) || changed;
+  }
+
   @Override
   public boolean isEmpty()
   {
@@ -0,0 +1,192 @@
+package com.kusa.playlist;
+
+import com.kusa.service.LocalService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Class representing a playlist that any number of threads can share.
+ *
+ * the playlist is an immutable snapshot (tracks, their positions and the
+ * index) behind an AtomicReference. reads just look at the current
+ * snapshot, they never lock and never see a half done change.
+ *
+ * next() and skipTo() only move the index, they swap in a new snapshot
+ * that shares the track list (compare and set, no lock), so the player
+ * never waits on a refresh. changes to the tracks (add, sync, shuffle...)
+ * are made one at a time on a copy (an IndexedPlaylist) that is then
+ * swapped in. if the player moved the index in the meantime the change is
+ * made again on the newer snapshot.
+ */
+public class ConcurrentPlaylist implements Playlist
+{
+  private final AtomicReference<Snapshot> snapshot;
+  //changes to the tracks go one at a time.
+  private final Object writeLock = new Object();
+
+  public ConcurrentPlaylist() { this(Collections.<String>emptyList()); }
+  public ConcurrentPlaylist(Collection<String> initialMRLS)
+  {
+    IndexedPlaylist initial = new IndexedPlaylist(initialMRLS);
+    snapshot = new AtomicReference<>(new Snapshot(initial.trackList(), 0));
+  }
+
+  /**
+   * Returns the next track and moves past it (lock free unless a file is missing).
+   *
+   * if the playlist is empty an empty string will be returned.
+   */
+  @Override
+  public String next()
+  {
+    while(true)
+    {
+      Snapshot s = snapshot.get();
+      if(s.mrls.isEmpty())
+      {
+        System.out.println("CALLING NEXT ON EMPTY PLAYLIST.");
+        return "";
+      }
+      final int i = s.index();
+      final String next = s.mrls.get(i);
+      if(!LocalService.fileExists(next))
+        return update(IndexedPlaylist::next); //drops the missing files.
+      if(snapshot.compareAndSet(s, s.withIndex(i + 1)))
+        return next;
+    }
+  }
+
+  @Override
+  public String skipTo(int pIndex)
+  {
+    while(true)
+    {
+      Snapshot s = snapshot.get();
+      if(s.mrls.isEmpty())
+        return "";
+      final int i = Math.floorMod(pIndex, s.mrls.size());
+      if(snapshot.compareAndSet(s, s.withIndex(i + 1)))
+        return s.mrls.get(i);
+    }
+  }
+
+  @Override
+  public boolean add(String mrl) { return update(p -> p.add(mrl)); }
+
+  @Override
+  public boolean addAll(Collection<String> mrls) { return update(p -> p.addAll(mrls)); }
+
+  @Override
+  public boolean sync(Set<String> mrls) { return update(p -> p.sync(mrls)); }
+
+  @Override
+  public boolean remove(String mrl)
+  {
+    return snapshot.get().positions.containsKey(mrl) && update(p -> p.remove(mrl));
+  }
+
+  @Override
+  public boolean remove(int pIndex) { return update(p -> p.remove(pIndex)); }
+
+  @Override
+  public boolean clear() { return update(IndexedPlaylist::clear); }
+
+  @Override
+  public void shuffle()
+  {
+    update(p -> {
+      p.shuffle();
+      return Boolean.TRUE;
+    });
+  }
+
+  //reads, straight from the current snapshot.
+
+  @Override
+  public boolean isEmpty() { return snapshot.get().mrls.isEmpty(); }
+
+  @Override
+  public boolean contains(String mrl) { return snapshot.get().positions.containsKey(mrl); }
+
+  @Override
+  public String current()
+  {
+    Snapshot s = snapshot.get();
+    return s.mrls.isEmpty() ? "" : s.mrls.get(s.index());
+  }
+
+  @Override
+  public int index() { return snapshot.get().index(); }
+
+  @Override
+  public int size() { return snapshot.get().mrls.size(); }
+
+  /**
+   * Returns the track list in the order matching playlist.
+   *
+   * @return UNMODIFIABLE list of mrls in the playlist (the snapshot itself, no copy).
+   */
+  @Override
+  public List<String> trackList() { return snapshot.get().mrls; }
+
+  /**
+   * Makes a change on a copy of the current snapshot and swaps it in.
+   *
+   * writers take turns, the player (next/skipTo) doesn't wait for them,
+   * if it moved the index first the change is made again.
+   */
+  private <R> R update(Function<IndexedPlaylist, R> change)
+  {
+    synchronized(writeLock)
+    {
+      while(true)
+      {
+        Snapshot s = snapshot.get();
+        IndexedPlaylist copy = new IndexedPlaylist(s.mrls, s.index);
+        R result = change.apply(copy);
+        List<String> mrls = copy.trackList();
+        //only the index moved (or nothing), no need to rebuild the positions.
+        Snapshot next = mrls.equals(s.mrls) ? s.withIndex(copy.index()) : new Snapshot(mrls, copy.index());
+        if(snapshot.compareAndSet(s, next))
+          return result;
+      }
+    }
+  }
+
+  /**
+   * One immutable state of the playlist.
+   */
+  private static class Snapshot
+  {
+    final List<String> mrls;
+    final Map<String, Integer> positions;
+    final int index;
+
+    Snapshot(List<String> mrls, int index)
+    {
+      this.mrls = List.copyOf(mrls);
+      Map<String, Integer> map = new HashMap<>(this.mrls.size() * 2);
+      for(int i = 0; i < this.mrls.size(); i++)
+        map.put(this.mrls.get(i), i);
+      this.positions = Collections.unmodifiableMap(map);
+      this.index = index;
+    }
+
+    private Snapshot(List<String> mrls, Map<String, Integer> positions, int index)
+    {
+      this.mrls = mrls;
+      this.positions = positions;
+      this.index = index;
+    }
+
+    Snapshot withIndex(int newIndex) { return new Snapshot(mrls, positions, newIndex); }
+
+    int index() { return (index >= mrls.size() || index < 0) ? 0 : index; }
+  }
+}
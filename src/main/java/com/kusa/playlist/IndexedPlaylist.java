@@ -0,0 +1,278 @@
+package com.kusa.playlist;
+
+import com.kusa.service.LocalService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Class representing a circular playlist that knows where every track is.
+ *
+ * works like CircularQueuePlaylist, but every mrl maps to its position, so
+ * contains() and finding a track to remove are O(1). missing files are
+ * skipped in a loop (no recursion), and sync() brings the playlist in line
+ * with a set of mrls by only adding and removing the difference, the
+ * track that plays next stays the same.
+ */
+public class IndexedPlaylist implements Playlist
+{
+  private final List<String> mrls;
+  private final Map<String, Integer> positions;
+  //position of the track next() returns.
+  private int index;
+
+  public IndexedPlaylist() { this(new ArrayList<String>()); }
+  public IndexedPlaylist(Collection<String> initialMRLS) { this(initialMRLS, 0); }
+
+  /** Constructs a playlist that continues at a position (used by ConcurrentPlaylist). */
+  IndexedPlaylist(Collection<String> initialMRLS, int index)
+  {
+    mrls = new ArrayList<>(initialMRLS.size());
+    positions = new HashMap<>(initialMRLS.size() * 2);
+    for(String mrl : initialMRLS)
+      if(!positions.containsKey(mrl))
+      {
+        positions.put(mrl, mrls.size());
+        mrls.add(mrl);
+      }
+    this.index = index;
+  }
+
+  /**
+   * Returns the next track and moves past it.
+   *
+   * tracks whose file is gone are removed on the way, this loops
+   * (at most once over the playlist) instead of recursing.
+   * if the playlist is empty an empty string will be returned.
+   */
+  @Override
+  public String next()
+  {
+    while(!mrls.isEmpty())
+    {
+      if(index >= mrls.size() || index < 0)
+        index = 0;
+      final String next = mrls.get(index);
+      if(LocalService.fileExists(next))
+      {
+        index++;
+        return next;
+      }
+
+      //drop the whole run of missing tracks in one pass (after a mass delete that is most of them).
+      Set<String> missing = new HashSet<>();
+      for(int i = index, seen = 0; seen < mrls.size() && !LocalService.fileExists(mrls.get(i)); i = (i + 1) % mrls.size(), seen++)
+        missing.add(mrls.get(i));
+      System.out.println(String.format("REMOVED %d MISSING FILES FROM PLAYLIST.", missing.size()));
+      retain(mrl -> !missing.contains(mrl));
+    }
+    System.out.println("CALLING NEXT ON EMPTY PLAYLIST.");
+    return "";
+  }
+
+  @Override
+  public String skipTo(int pIndex)
+  {
+    if(mrls.isEmpty())
+      return "";
+    index = Math.floorMod(pIndex, mrls.size());
+    return mrls.get(index++);
+  }
+
+  /**
+   * Adds the mrl to the end of playlist (if it exists and isn't in it yet).
+   */
+  @Override
+  public boolean add(String mrl)
+  {
+    if(positions.containsKey(mrl) || !LocalService.fileExists(mrl))
+      return false;
+    append(mrl);
+    return true;
+  }
+
+  /**
+   * Adds every mrl not in the playlist yet, existence is checked in one pass.
+   */
+  @Override
+  public boolean addAll(Collection<String> newMrls)
+  {
+    List<String> candidates = new ArrayList<>();
+    for(String mrl : newMrls)
+      if(!positions.containsKey(mrl))
+        candidates.add(mrl);
+
+    boolean changed = false;
+    for(String mrl : LocalService.filesExist(candidates))
+      if(!positions.containsKey(mrl))
+      {
+        append(mrl);
+        changed = true;
+      }
+    return changed;
+  }
+
+  /**
+   * Makes the playlist hold exactly the given mrls (that exist).
+   *
+   * tracks not in the set are removed, new ones go to the end, everything
+   * else keeps its order. the track that would have played next still
+   * plays next (unless it was removed, then the one after it).
+   *
+   * @return true if the playlist changed.
+   */
+  @Override
+  public boolean sync(Set<String> wanted)
+  {
+    final boolean removed = retain(wanted::contains);
+
+    List<String> added = new ArrayList<>();
+    for(String mrl : wanted)
+      if(!positions.containsKey(mrl))
+        added.add(mrl);
+    boolean changed = removed;
+    if(!added.isEmpty())
+      changed |= addAll(added);
+    return changed;
+  }
+
+  @Override
+  public boolean remove(String mrl)
+  {
+    Integer position = positions.get(mrl);
+    if(position == null)
+    {
+      System.out.println("Cant remove file from playlist. " + mrl + " does not exist in this playlist");
+      return false;
+    }
+    return remove(position);
+  }
+
+  @Override
+  public boolean remove(int pIndex)
+  {
+    if(pIndex < 0 || pIndex >= mrls.size())
+    {
+      System.out.println("Couldnt remove file from playlist! no index " + pIndex);
+      return false;
+    }
+    String mrl = removeAt(pIndex);
+    System.out.println("REMOVED FILE FROM PLAYLIST. " + mrl);
+    return true;
+  }
+
+  @Override
+  public boolean clear()
+  {
+    if(mrls.isEmpty())
+      return false;
+    mrls.clear();
+    positions.clear();
+    index = 0;
+    return true;
+  }
+
+  @Override
+  public boolean isEmpty() { return mrls.isEmpty(); }
+
+  @Override
+  public void shuffle()
+  {
+    Collections.shuffle(mrls);
+    reindex(0);
+  }
+
+  @Override
+  public boolean contains(String mrl) { return positions.containsKey(mrl); }
+
+  /** Returns the position of a track or -1 if it isn't in the playlist. */
+  public int positionOf(String mrl)
+  {
+    Integer position = positions.get(mrl);
+    return position == null ? -1 : position;
+  }
+
+  @Override
+  public String current()
+  {
+    return mrls.isEmpty() ? "" : mrls.get(index());
+  }
+
+  @Override
+  public int index() { return (index >= mrls.size()) ? 0 : index; }
+
+  @Override
+  public int size() { return mrls.size(); }
+
+  /**
+   * Returns the track list in the order matching playlist.
+   *
+   * @return UNMODIFIABLE list of mrls in the playlist.
+   */
+  @Override
+  public List<String> trackList() { return List.copyOf(mrls); }
+
+  private void append(String mrl)
+  {
+    positions.put(mrl, mrls.size());
+    mrls.add(mrl);
+  }
+
+  /**
+   * Keeps only the tracks that pass, in one pass over the playlist.
+   *
+   * the index stays on the same upcoming track (or the next one kept).
+   *
+   * @return true if anything was removed.
+   */
+  private boolean retain(Predicate<String> keep)
+  {
+    int kept = 0;
+    int newIndex = 0;
+    for(int i = 0; i < mrls.size(); i++)
+    {
+      String mrl = mrls.get(i);
+      if(!keep.test(mrl))
+      {
+        positions.remove(mrl);
+        continue;
+      }
+      if(i < index)
+        newIndex++;
+      mrls.set(kept, mrl);
+      positions.put(mrl, kept);
+      kept++;
+    }
+    if(kept == mrls.size())
+      return false;
+    mrls.subList(kept, mrls.size()).clear();
+    index = newIndex;
+    return true;
+  }
+
+  /** Removes the track at a position, keeping the index on the same upcoming track. */
+  private String removeAt(int position)
+  {
+    String mrl = mrls.remove(position);
+    positions.remove(mrl);
+    if(position < index)
+      index--;
+    reindex(position);
+    return mrl;
+  }
+
+  /** Updates the positions of every track from a position on. */
+  private void reindex(int from)
+  {
+    if(from == 0)
+      positions.clear();
+    for(int i = from; i < mrls.size(); i++)
+      positions.put(mrls.get(i), i);
+  }
+}
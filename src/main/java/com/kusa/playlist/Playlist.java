@@ -1,6 +1,8 @@
 package com.kusa.playlist;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public interface Playlist {
 
@@ -10,9 +12,12 @@ public interface Playlist {
 
   //true if playlist changed after call.
   boolean add(String mrl);
+  boolean addAll(Collection<String> mrls);
   boolean remove(String mrl);
   boolean remove(int pIndex);
   boolean clear();
+  //keeps only these mrls (adding the new ones) without losing the position.
+  boolean sync(Set<String> mrls);
   boolean isEmpty();
 
   void shuffle();
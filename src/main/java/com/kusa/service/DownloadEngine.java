@@ -0,0 +1,274 @@
+package com.kusa.service;
+
+import com.kusa.util.PathedFile;
+import com.kusa.util.RateLimiter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Class that runs drive downloads on a small pool of workers.
+ *
+ * downloads are picked from a priority queue:
+ *  - files in today's day of week folder first.
+ *  - images before videos.
+ *  - smaller files before bigger ones.
+ *
+ * every byte written goes through one shared RateLimiter so all the
+ * workers together stay under the configured bytes/sec cap.
+ *
+ * progress for each file of the current batch can be read with progress().
+ */
+public class DownloadEngine
+{
+  private final ThreadPoolExecutor pool;
+  private final RateLimiter limiter;
+  private final Map<String, Progress> progress;
+  private final AtomicLong sequence;
+  private final AtomicLong totalBytes;
+
+  public DownloadEngine(int workers, long bytesPerSecond)
+  {
+    final int poolSize = Math.max(1, workers);
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), r -> {
+      Thread t = new Thread(r, "download-worker-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    //start the workers now so every task goes through the priority queue.
+    this.pool.prestartAllCoreThreads();
+    this.limiter = new RateLimiter(bytesPerSecond);
+    this.progress = new ConcurrentHashMap<>();
+    this.sequence = new AtomicLong();
+    this.totalBytes = new AtomicLong();
+    log(String.format("started with %d workers, cap %s", poolSize,
+          limiter.isLimited() ? limiter.bytesPerSecond() + " bytes/sec" : "unlimited"));
+  }
+
+  /**
+   * Downloads every file and waits until the whole batch is done.
+   *
+   * @param files pathed files to download.
+   * @param download the actual download, returns true if the file changed on disk.
+   * @return true if any download returned true.
+   */
+  public boolean downloadAll(Collection<PathedFile> files, Predicate<PathedFile> download)
+  {
+    if(files.isEmpty())
+      return false;
+
+    progress.clear();
+    final String today = LocalService.today();
+    final CountDownLatch done = new CountDownLatch(files.size());
+    final AtomicBoolean changed = new AtomicBoolean(false);
+    final long batchStart = System.nanoTime();
+    final long bytesBefore = totalBytes.get();
+
+    for(PathedFile pf : files)
+    {
+      Task task = new Task(pf, today, sequence.getAndIncrement(), () -> {
+        try
+        {
+          if(download.test(pf))
+            changed.set(true);
+        }
+        catch(Exception e)
+        {
+          log("download task failed for " + pf.file().getName() + " (see stack trace)");
+          e.printStackTrace();
+        }
+        finally
+        {
+          Progress p = progress.get(pf.file().getId());
+          if(p != null)
+            p.finish();
+          done.countDown();
+        }
+      });
+      pool.execute(task);
+    }
+
+    try
+    {
+      done.await();
+    }
+    catch(InterruptedException e)
+    {
+      log("interrupted while waiting for downloads.");
+      Thread.currentThread().interrupt();
+    }
+
+    double seconds = (System.nanoTime() - batchStart) / 1_000_000_000d;
+    long bytes = totalBytes.get() - bytesBefore;
+    log(String.format("batch of %d files done, %d bytes in %.1fs (%.1f KB/s)",
+          files.size(), bytes, seconds, seconds > 0 ? bytes / 1024d / seconds : 0d));
+    return changed.get();
+  }
+
+  /**
+   * Wraps a download's output stream so it is throttled and tracked.
+   *
+   * @param pf the file being downloaded.
+   * @param out stream the file's bytes are written to.
+   * @param alreadyDownloaded bytes that were already on disk (resumed downloads).
+   */
+  public OutputStream track(PathedFile pf, OutputStream out, long alreadyDownloaded)
+  {
+    Long size = pf.file().getSize();
+    Progress p = new Progress(pf.path() + pf.file().getName(), size == null ? -1L : size, alreadyDownloaded);
+    progress.put(pf.file().getId(), p);
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException
+      {
+        throttle(1);
+        out.write(b);
+        p.add(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        throttle(len);
+        out.write(b, off, len);
+        p.add(len);
+      }
+    };
+  }
+
+  private void throttle(int bytes) throws IOException
+  {
+    try
+    {
+      limiter.acquire(bytes);
+      totalBytes.addAndGet(bytes);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("download interrupted while throttled");
+    }
+  }
+
+  /**
+   * Returns the progress of every file in the current (or last) batch.
+   *
+   * @return UNMODIFIABLE map of local path to progress, ordered by path.
+   */
+  public Map<String, Progress> progress()
+  {
+    Map<String, Progress> snapshot = new LinkedHashMap<>();
+    progress.values().stream().sorted((a, b) -> a.path().compareTo(b.path())).forEach(p -> snapshot.put(p.path(), p));
+    return Collections.unmodifiableMap(snapshot);
+  }
+
+  /** Returns the total bytes downloaded by this engine. */
+  public long totalBytes() { return totalBytes.get(); }
+
+  /** Returns the number of downloads waiting for a worker. */
+  public int queued() { return pool.getQueue().size(); }
+
+  public void shutdown() { pool.shutdownNow(); }
+
+  /**
+   * Progress of a single download.
+   */
+  public static class Progress
+  {
+    private final String path;
+    private final long size;
+    private final long resumedFrom;
+    private final AtomicLong downloaded;
+    private final long startNanos;
+    private volatile long endNanos;
+
+    Progress(String path, long size, long resumedFrom)
+    {
+      this.path = path;
+      this.size = size;
+      this.resumedFrom = resumedFrom;
+      this.downloaded = new AtomicLong(resumedFrom);
+      this.startNanos = System.nanoTime();
+      this.endNanos = 0L;
+    }
+
+    void add(long bytes) { downloaded.addAndGet(bytes); }
+    void finish() { endNanos = System.nanoTime(); }
+
+    public String path() { return path; }
+    //-1 if drive didn't tell us the size.
+    public long size() { return size; }
+    public long downloaded() { return downloaded.get(); }
+    public boolean isDone() { return endNanos != 0L; }
+
+    /** Returns 0-1 or -1 if the size is unknown. */
+    public double fraction() { return size > 0 ? (double)downloaded() / size : -1d; }
+
+    /** Returns bytes/sec of this download (resumed bytes don't count). */
+    public double bytesPerSecond()
+    {
+      long end = isDone() ? endNanos : System.nanoTime();
+      double seconds = (end - startNanos) / 1_000_000_000d;
+      return seconds > 0 ? (downloaded() - resumedFrom) / seconds : 0d;
+    }
+  }
+
+  /**
+   * Queued download, ordered by priority then by submit order.
+   */
+  private static class Task implements Runnable, Comparable<Task>
+  {
+    private final int dayRank;
+    private final int typeRank;
+    private final long size;
+    private final long seq;
+    private final Runnable work;
+
+    Task(PathedFile pf, String today, long seq, Runnable work)
+    {
+      String day = LocalService.dayFolder(pf.path());
+      this.dayRank = today.equals(day) ? 0 : (day != null ? 2 : 1);
+      String mt = pf.file().getMimeType();
+      this.typeRank = (mt != null && mt.contains("image")) ? 0 : 1;
+      this.size = pf.file().getSize() == null ? Long.MAX_VALUE : pf.file().getSize();
+      this.seq = seq;
+      this.work = work;
+    }
+
+    @Override
+    public void run() { work.run(); }
+
+    @Override
+    public int compareTo(Task o)
+    {
+      if(dayRank != o.dayRank)
+        return Integer.compare(dayRank, o.dayRank);
+      if(typeRank != o.typeRank)
+        return Integer.compare(typeRank, o.typeRank);
+      if(size != o.size)
+        return Long.compare(size, o.size);
+      return Long.compare(seq, o.seq);
+    }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[DownloadEngine] " + message);
+  }
+}
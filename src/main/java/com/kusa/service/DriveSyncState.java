@@ -0,0 +1,138 @@
+package com.kusa.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class that remembers where we left off in the drive's changes feed.
+ *
+ * we keep the start page token along with every folder we have seen
+ * inside the app folder (folder id mapped to its path) so a change
+ * can be placed in the right local directory without crawling the
+ * whole drive again.
+ *
+ * file layout (plain text):
+ *  - first line is the page token.
+ *  - every line after is "folderId&lt;TAB&gt;path".
+ */
+public class DriveSyncState
+{
+  private final File file;
+  private String pageToken;
+  private Map<String, String> folderPaths;
+
+  public DriveSyncState(String path)
+  {
+    this.file = new File(path);
+    this.pageToken = null;
+    this.folderPaths = new HashMap<>();
+    load();
+  }
+
+  /**
+   * Loads the state from disk.
+   *
+   * if anything goes wrong we just start with an empty state,
+   * that only means the next sync will be a full crawl.
+   */
+  private void load()
+  {
+    if(!file.exists())
+      return;
+
+    try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+    {
+      String token = reader.readLine();
+      Map<String, String> folders = new HashMap<>();
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        int tab = line.indexOf('\t');
+        if(tab > 0)
+          folders.put(line.substring(0, tab), line.substring(tab + 1));
+      }
+      if(token != null && !token.isBlank())
+      {
+        pageToken = token.trim();
+        folderPaths = folders;
+      }
+    }
+    catch(IOException e)
+    {
+      log("failed to read sync state " + file + " (will do a full crawl).");
+      clear();
+    }
+  }
+
+  /**
+   * Writes the state to disk.
+   *
+   * we write to a temp file first and move it over the old one
+   * so a crash mid write never leaves us with half a token file.
+   *
+   * @return true if the state was saved.
+   */
+  public boolean save()
+  {
+    if(pageToken == null)
+      return false;
+
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(file.getName() + ".tmp");
+    try
+    {
+      try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+      {
+        writer.write(pageToken);
+        writer.newLine();
+        for(Map.Entry<String, String> entry : folderPaths.entrySet())
+        {
+          writer.write(entry.getKey() + "\t" + entry.getValue());
+          writer.newLine();
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    }
+    catch(IOException e)
+    {
+      log("failed to save sync state (see stack trace)");
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /** Forgets the page token and every known folder. */
+  public void clear()
+  {
+    pageToken = null;
+    folderPaths = new HashMap<>();
+  }
+
+  public boolean hasPageToken() { return pageToken != null; }
+  public String getPageToken() { return pageToken; }
+  public void setPageToken(String token) { pageToken = token; }
+
+  /**
+   * Returns the local path of a drive folder relative to the app folder.
+   *
+   * @param folderId drive id of the folder.
+   * @return path ending in '/' ("" for the app folder) or null if the folder is unknown.
+   */
+  public String folderPath(String folderId) { return folderPaths.get(folderId); }
+  public void putFolder(String folderId, String path) { folderPaths.put(folderId, path); }
+  public void removeFolder(String folderId) { folderPaths.remove(folderId); }
+
+  private void log(String message)
+  {
+    System.out.println("[DriveSyncState] " + message);
+  }
+}
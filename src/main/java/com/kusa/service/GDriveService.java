@@ -1,17 +1,24 @@
 package com.kusa.service;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import java.io.FileNotFoundException;
@@ -23,15 +30,28 @@ import java.util.Collections;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.LinkedList;
 import java.util.ArrayList;
-import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Iterator;
 import com.kusa.Config;
+import com.kusa.util.CircuitBreaker;
 import com.kusa.util.PathedFile;
 import org.apache.commons.io.FileUtils;
 
@@ -52,6 +72,10 @@ public class GDriveService
   private static final String MAIN_FOLDER_NAME = "JINZO";
   private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
   private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+  private static final String FILE_FIELDS = "id, name, parents, description, mimeType, size, md5Checksum, modifiedTime";
+
+  //each ranged request pulls at most this much, an interrupted download resumes from the last full chunk.
+  private static final int DOWNLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
 
   //we only use read only. app only needs to be able to download the videos.
   private static final List<String> SCOPES = Collections.singletonList(DriveScopes.DRIVE_READONLY);
@@ -63,9 +87,60 @@ public class GDriveService
   private static final String TOKEN_STORAGE_PATH = Config.getProperty("tokenStoragePath");
   private static final String CREDENTIALS_FILE_PATH = Config.getProperty("googleCredentialsPath");
 
+  /* incremental sync settings.
+   * 'incrementalSync' set to false to always crawl the whole app folder.
+   * 'syncStatePath' where we keep the changes page token + known folders.
+   * 'driveRootUrl' lets us point the service at a local fake drive (no credentials are used).
+   */
+  private static final boolean INCREMENTAL_SYNC = !Config.getProperty("incrementalSync", "true").equalsIgnoreCase("false");
+  private static final String SYNC_STATE_PATH = Config.getProperty("syncStatePath", Config.getAppPath() + "drive.sync");
+  private static final String DRIVE_ROOT_URL = Config.getProperty("driveRootUrl", "");
+
+  /* download engine settings.
+   * 'downloadWorkers' how many files download at the same time.
+   * 'downloadBytesPerSecond' cap shared by all workers (0 is unlimited).
+   */
+  private static final int DOWNLOAD_WORKERS = Integer.parseInt(Config.getProperty("downloadWorkers", "2"));
+  private static final long DOWNLOAD_BYTES_PER_SECOND = Long.parseLong(Config.getProperty("downloadBytesPerSecond", "0"));
+
+  /* crawl settings.
+   * 'crawlConcurrency' max files().list requests in flight while crawling.
+   * 'crawlBatchSize' how many parent folders are combined into one query.
+   */
+  private static final int CRAWL_CONCURRENCY = Integer.parseInt(Config.getProperty("crawlConcurrency", "4"));
+  private static final int CRAWL_BATCH_SIZE = Integer.parseInt(Config.getProperty("crawlBatchSize", "8"));
+
+  /* session settings.
+   * 'driveRetries' attempts per request for transient errors (timeouts, 429, 5xx).
+   * 'driveBackoffMillis' first retry delay, doubled every attempt (with jitter).
+   * 'driveBreakerFailures' failed requests in a row before we stop calling drive.
+   * 'driveBreakerOpenSeconds' how long we stop calling drive (doubles while it stays down).
+   */
+  private static final int DRIVE_RETRIES = Integer.parseInt(Config.getProperty("driveRetries", "4"));
+  private static final long DRIVE_BACKOFF_MILLIS = Long.parseLong(Config.getProperty("driveBackoffMillis", "500"));
+  private static final long DRIVE_MAX_BACKOFF_MILLIS = 30_000L;
+  private static final int DRIVE_BREAKER_FAILURES = Integer.parseInt(Config.getProperty("driveBreakerFailures", "3"));
+  private static final long DRIVE_BREAKER_OPEN_MILLIS = Long.parseLong(Config.getProperty("driveBreakerOpenSeconds", "300")) * 1000L;
+
+  //id of the app folder from the last run, saves looking it up every start.
+  private static final String FOLDER_CACHE_PATH = Config.getAppPath() + "drive.folder";
+
+  private final String driveRootUrl;
+  private NetHttpTransport transport;
   private Drive drive;
   private File jinzoFolder;
-  private boolean valid;
+  private volatile boolean valid;
+  private volatile boolean needsAuth;
+  private volatile boolean lastCallFailed;
+  private CircuitBreaker breaker;
+  private DriveSyncState syncState;
+  private String pendingPageToken;
+  private DownloadEngine engine;
+  private ExecutorService crawlPool;
+  private MediaJanitor janitor;
+  private List<String> pendingStalePaths;
+  //folders the changes feed placed (id to path) or removed (id to null), kept with the token.
+  private Map<String, String> pendingFolders;
 
   /**
    * Constructor for creating the google drive service.
@@ -78,21 +153,59 @@ public class GDriveService
    *
    * TODO handle failure properly.
    *  - currently using valid flag.
+   *
+   * we don't connect here, the first call to isValid() does. that
+   * way the player can start from the local manifest without waiting
+   * on the network.
+   */
+  public GDriveService() { this(DRIVE_ROOT_URL, SYNC_STATE_PATH, new MediaJanitor()); }
+
+  /**
+   * @param driveRootUrl drive endpoint to talk to, "" is google's (with credentials).
+   * @param syncStatePath where the changes page token is kept.
+   * @param janitor mirrors deletions and enforces the quota after a sync.
    */
-  public GDriveService()
+  GDriveService(String driveRootUrl, String syncStatePath, MediaJanitor janitor)
   {
+    this.driveRootUrl = driveRootUrl;
     this.valid = false;
-    init();
+    this.needsAuth = true;
+    this.lastCallFailed = false;
+    this.breaker = new CircuitBreaker("drive", DRIVE_BREAKER_FAILURES, DRIVE_BREAKER_OPEN_MILLIS, DRIVE_BREAKER_OPEN_MILLIS * 4);
+    this.syncState = new DriveSyncState(syncStatePath);
+    this.engine = new DownloadEngine(DOWNLOAD_WORKERS, DOWNLOAD_BYTES_PER_SECOND);
+    this.janitor = janitor;
+    this.crawlPool = Executors.newFixedThreadPool(Math.max(1, CRAWL_CONCURRENCY), r -> {
+      Thread t = new Thread(r, "drive-crawler");
+      t.setDaemon(true);
+      return t;
+    });
   }
 
+  /**
+   * Connects to drive.
+   *
+   * the http transport (and its connection pool) is created once and
+   * reused for the life of the app. credentials are only loaded again
+   * after a real auth failure (needsAuth), a network outage never
+   * sends us back through the login flow.
+   */
   private void init()
   {
     boolean valid = false;
     try
     {
-      final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-      drive = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT)).setApplicationName(googleAppName).build();
-      valid = findAppFolder();
+      if(transport == null)
+        transport = GoogleNetHttpTransport.newTrustedTransport();
+      if(drive == null || needsAuth)
+      {
+        if(driveRootUrl.isEmpty())
+          drive = new Drive.Builder(transport, JSON_FACTORY, getCredentials(transport)).setApplicationName(googleAppName).build();
+        else
+          drive = new Drive.Builder(transport, JSON_FACTORY, null).setRootUrl(driveRootUrl).setApplicationName(googleAppName).build();
+        needsAuth = false;
+      }
+      valid = (jinzoFolder != null) || findAppFolder();
       if(!valid)
         log("failed to launch gdrive service, app folder " + MAIN_FOLDER_NAME + " not found.");
     }
@@ -101,6 +214,7 @@ public class GDriveService
       log("failed to launch gdrive service. (see stack trace)");
       e.printStackTrace();
       valid = false;
+      handleFailure(e);
     }
     finally
     {
@@ -112,8 +226,16 @@ public class GDriveService
    * Returns true if you can safely use this service.
    *
    * will attempt to re initialize if it's not valid.
+   * while the circuit breaker is open (drive keeps failing) we don't
+   * even try, the call is refused until the breaker lets a trial through.
    */
   public boolean isValid() { 
+    if(breaker.isOpen())
+    {
+      log(String.format("drive is down, not calling it for another %ds.", breaker.remainingOpenMillis() / 1000));
+      return false;
+    }
+
     if(!this.valid)
     {
       log("service invalid.. starting attemptt to revalidate");
@@ -131,19 +253,45 @@ public class GDriveService
    *
    * sets jinzo folder to the google drive's corresponding folder file.
    *
+   * the folder id is cached on disk, if it's still good it only costs
+   * one small get request. otherwise we search drive for the folder by name.
+   *
    * @return true if jinzo folder is found and will not be null.
    *         false if jinzo folder will be null after this method.
    */
   private boolean findAppFolder()
   {
     try{
-      FileList result = drive.files().list().setQ("mimeType = 'application/vnd.google-apps.folder'").setFields("files(id, name)").execute();
+      java.io.File cache = new java.io.File(FOLDER_CACHE_PATH);
+      if(cache.exists())
+      {
+        String cachedId = Files.readString(cache.toPath()).trim();
+        try
+        {
+          File folder = execute(drive.files().get(cachedId).setFields("id, name, trashed"));
+          if(MAIN_FOLDER_NAME.equals(folder.getName()) && !Boolean.TRUE.equals(folder.getTrashed()))
+          {
+            jinzoFolder = folder;
+            return true;
+          }
+        }
+        catch(GoogleJsonResponseException e)
+        {
+          if(e.getStatusCode() != 404)
+            throw e;
+        }
+        log("cached app folder id is stale, searching drive.");
+      }
+
+      String query = String.format("name = '%s' and mimeType = '%s' and trashed = false", MAIN_FOLDER_NAME, FOLDER_MIME_TYPE);
+      FileList result = execute(drive.files().list().setQ(query).setFields("files(id, name)"));
       List<File> files = result.getFiles();
       for(File file : files)
       {
         if(file.getName().equals(MAIN_FOLDER_NAME))
         {
           jinzoFolder = file;
+          Files.writeString(cache.toPath(), file.getId());
           return true;
         }
       }
@@ -153,10 +301,122 @@ public class GDriveService
     {
       log("failure, " + MAIN_FOLDER_NAME + " not found! (see stack trace)");
       e.printStackTrace();
+      handleFailure(e);
       return false;
     }
   }
 
+  /**
+   * Executes a drive request, retrying transient errors.
+   *
+   * timeouts, dropped connections, 429s and 5xx are retried with
+   * exponential backoff and full jitter. every request goes through
+   * the circuit breaker so we stop hammering drive while it's down.
+   * other errors (404, 400, auth) are thrown right away.
+   */
+  private <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException
+  {
+    IOException failure = null;
+    for(int attempt = 0; attempt < Math.max(1, DRIVE_RETRIES); attempt++)
+    {
+      if(!breaker.allowRequest())
+        throw new IOException("drive circuit breaker is open, request refused.");
+      try
+      {
+        T result = request.execute();
+        breaker.recordSuccess();
+        return result;
+      }
+      catch(IOException e)
+      {
+        if(!isTransient(e))
+        {
+          //drive answered, it just didn't like the request.
+          if(isAuthFailure(e))
+            breaker.release();
+          else
+            breaker.recordSuccess();
+          throw e;
+        }
+        failure = e;
+        breaker.recordFailure();
+        long cap = Math.min(DRIVE_MAX_BACKOFF_MILLIS, DRIVE_BACKOFF_MILLIS << attempt);
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        log(String.format("transient drive error (%s), retry %d in %dms", e.getMessage(), attempt + 1, delay));
+        try
+        {
+          Thread.sleep(delay);
+        }
+        catch(InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+          throw new java.io.InterruptedIOException("interrupted while backing off");
+        }
+      }
+      catch(RuntimeException e)
+      {
+        breaker.release();
+        throw e;
+      }
+    }
+    throw failure;
+  }
+
+  /** Returns true if retrying the request later could work. */
+  private static boolean isTransient(IOException e)
+  {
+    if(e instanceof TokenResponseException)
+      return false;
+    if(e instanceof HttpResponseException)
+    {
+      int code = ((HttpResponseException) e).getStatusCode();
+      if(code == 429 || code >= 500)
+        return true;
+      return code == 403 && isRateLimit(e);
+    }
+    return true; //timeouts, unknown host, connection reset...
+  }
+
+  private static boolean isRateLimit(IOException e)
+  {
+    if(!(e instanceof GoogleJsonResponseException))
+      return false;
+    GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+    if(details == null || details.getErrors() == null)
+      return false;
+    for(GoogleJsonError.ErrorInfo info : details.getErrors())
+      if(info.getReason() != null && info.getReason().toLowerCase().contains("ratelimitexceeded"))
+        return true;
+    return false;
+  }
+
+  /** Returns true if the error means our credentials are no good anymore. */
+  private static boolean isAuthFailure(Throwable e)
+  {
+    if(e instanceof TokenResponseException)
+      return true;
+    return (e instanceof HttpResponseException) && ((HttpResponseException) e).getStatusCode() == 401;
+  }
+
+  /**
+   * Decides what a failed drive call means for the session.
+   *
+   * only auth failures invalidate the session (next isValid() logs in
+   * again), anything else just fails this sync and the circuit breaker
+   * decides when we try again.
+   */
+  private void handleFailure(Throwable e)
+  {
+    lastCallFailed = true;
+    Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+    if(isAuthFailure(cause))
+    {
+      log("drive rejected our credentials, will log in again.");
+      needsAuth = true;
+      valid = false;
+    }
+  }
+
 
   private static Credential getCredentials(final NetHttpTransport HTTP_TRANSPORT) throws IOException, FileNotFoundException
   {
@@ -187,6 +447,11 @@ public class GDriveService
    * idk if thats the best approach but if any failure occurs
    * it will return an empty list.
    *
+   * the crawl goes one folder depth at a time. every folder in a depth
+   * is listed at once: folders are grouped into queries of
+   * CRAWL_BATCH_SIZE parents ('a' in parents or 'b' in parents ...)
+   * and the queries run in parallel on the crawl pool.
+   *
    * @return List of google drive files in application folder (JINZO).
    */
   public List<PathedFile> getFileList() { return getFileList("", true); }
@@ -195,98 +460,151 @@ public class GDriveService
     try
     {
       PathedFile start = new PathedFile(jinzoFolder, "");
-
-      boolean skipSearch = true;
       if(!nestedFolders.equals(""))
       {
         log("getting file list, using dir: " + nestedFolders);
-        skipSearch = false;
+        PathedFile nested = findNestedFolder(nestedFolders);
+        if(nested != null)
+          start = nested;
+        else
+          log("couldn't find " + nestedFolders + " in drive, using the app folder.");
       }
 
-      if(!nestedFolders.equals(""))
-      {
-        String pageToken = null;
-        PathedFile pf = new PathedFile(jinzoFolder, "");
-        File folder = pf.file();
-        String path = pf.path();
-        String id = folder.getId();
-        do {
-          String query = String.format("'%s' in parents and trashed = false",id);
-          FileList result = drive.files().list().setQ(query).setFields("nextPageToken, files(id, name, parents, description, mimeType)")
-            .setPageToken(pageToken).execute();
-          if(result.getNextPageToken() != null)
-            log("got a next page token!"); //result.getNextPageToken()
-          if(result.getIncompleteSearch() != null)
-            if(result.getIncompleteSearch())
-              log("incomplete search occured in getFileList()");
-          pageToken = result.getNextPageToken();
-          List<File> folderFiles = result.getFiles();
-          log(String.format("found %d files in :/%s", folderFiles.size(), path));
-          for(File file : folderFiles)
-          {
-            if(file.getMimeType().equals(FOLDER_MIME_TYPE)
-                && nestedFolders.equals(path + file.getName() + "/"))
-            {
-              start = new PathedFile(file, path + file.getName() + "/");
-              skipSearch = true;
-              break;
-            }
-          }
-        } while(pageToken != null && !skipSearch);
-      }
-      
-      //Google drive File
-      Queue<PathedFile> folders = new LinkedList<>(List.of(start));
       List<PathedFile> files = new ArrayList<>();
-      while(!folders.isEmpty())
+      List<PathedFile> level = List.of(start);
+      while(!level.isEmpty())
       {
-        PathedFile pf = folders.poll();
-        File folder = pf.file();
-        String path = pf.path();
-        String id = folder.getId();
-
-        String query = String.format("'%s' in parents and trashed = false",id);
-        String pageToken = null;
-        do{
-          FileList result = drive.files().list().setQ(query).setFields("nextPageToken, files(id, name, parents, description, mimeType)")
-            .setPageToken(pageToken).execute();
-          if(result.getNextPageToken() != null)
-            log("got a next page token!"); //result.getNextPageToken()
-          if(result.getIncompleteSearch() != null)
-            if(result.getIncompleteSearch())
-              log("incomplete search occured in getFileList() 2nd half");
-          pageToken = result.getNextPageToken();
-          List<File> folderFiles = result.getFiles();
-          for(File file : folderFiles)
-          {
-            if(file.getMimeType().equals(FOLDER_MIME_TYPE) && recursive)
-              folders.add(new PathedFile(file, path + file.getName() + "/"));
+        List<Callable<List<PathedFile>>> batches = new ArrayList<>();
+        for(int i = 0; i < level.size(); i += CRAWL_BATCH_SIZE)
+        {
+          final List<PathedFile> batch = level.subList(i, Math.min(level.size(), i + CRAWL_BATCH_SIZE));
+          for(PathedFile pf : batch)
+            syncState.putFolder(pf.file().getId(), pf.path());
+          batches.add(() -> listChildren(batch));
+        }
 
-            if(!file.getMimeType().equals(FOLDER_MIME_TYPE))
-              files.add(new PathedFile(file, path));
+        List<PathedFile> nextLevel = new ArrayList<>();
+        for(Future<List<PathedFile>> result : crawlPool.invokeAll(batches))
+        {
+          for(PathedFile child : result.get())
+          {
+            if(!child.file().getMimeType().equals(FOLDER_MIME_TYPE))
+              files.add(child);
+            else if(recursive)
+              nextLevel.add(child);
           }
-        } while(pageToken != null);
+        }
+        level = nextLevel;
       }
       return files;
     }
+    catch(ExecutionException e)
+    {
+      log("failed to get files (see stack trace)");
+      e.getCause().printStackTrace();
+      handleFailure(e);
+      return Collections.emptyList();
+    }
     catch(Exception e)
     {
       log("failed to get files (see stack trace)");
       e.printStackTrace();
-      log("set valid to FALSE");
-      this.valid = false;
+      handleFailure(e);
       return Collections.emptyList();
     }
   }
 
+  /**
+   * Lists everything directly inside a batch of folders with one query.
+   *
+   * children are matched back to their folder through their parents.
+   * folders are returned with their own path ("a/b/"), files with the
+   * path of the folder they live in, same as getFileList.
+   */
+  private List<PathedFile> listChildren(List<PathedFile> folders) throws IOException
+  {
+    Map<String, String> paths = new HashMap<>();
+    StringBuilder parents = new StringBuilder();
+    for(PathedFile pf : folders)
+    {
+      paths.put(pf.file().getId(), pf.path());
+      if(parents.length() > 0)
+        parents.append(" or ");
+      parents.append(String.format("'%s' in parents", pf.file().getId()));
+    }
+
+    String query = String.format("(%s) and trashed = false", parents);
+    List<PathedFile> children = new ArrayList<>();
+    String pageToken = null;
+    do{
+      FileList result = execute(drive.files().list().setQ(query).setFields("nextPageToken, files(" + FILE_FIELDS + ")")
+        .setPageToken(pageToken));
+      if(result.getIncompleteSearch() != null && result.getIncompleteSearch())
+        log("incomplete search occured in getFileList()");
+      pageToken = result.getNextPageToken();
+      for(File file : result.getFiles())
+      {
+        String path = null;
+        if(file.getParents() != null)
+          for(String parent : file.getParents())
+            if(path == null)
+              path = paths.get(parent);
+        if(path == null)
+          continue;
+
+        if(file.getMimeType().equals(FOLDER_MIME_TYPE))
+          children.add(new PathedFile(file, path + file.getName() + "/"));
+        else
+          children.add(new PathedFile(file, path));
+      }
+    } while(pageToken != null);
+    return children;
+  }
+
+  /**
+   * Finds a nested folder ("videos/friday/") under the app folder.
+   *
+   * we walk the path one name at a time asking drive for just that
+   * folder, so it costs one small query per level instead of listing
+   * every folder along the way.
+   *
+   * @return pathed folder or null if any part of the path is missing.
+   */
+  private PathedFile findNestedFolder(String nestedFolders) throws IOException
+  {
+    PathedFile current = new PathedFile(jinzoFolder, "");
+    for(String name : nestedFolders.split("/"))
+    {
+      if(name.isEmpty())
+        continue;
+      String query = String.format("'%s' in parents and name = '%s' and mimeType = '%s' and trashed = false",
+          current.file().getId(), name.replace("\\", "\\\\").replace("'", "\\'"), FOLDER_MIME_TYPE);
+      FileList result = execute(drive.files().list().setQ(query).setFields("files(" + FILE_FIELDS + ")"));
+      if(result.getFiles() == null || result.getFiles().isEmpty())
+        return null;
+      current = new PathedFile(result.getFiles().get(0), current.path() + name + "/");
+    }
+    return current;
+  }
+
   /**
    * Downloads a PathedFile locally.
    *
    *
-   * if file already exists we skip it.
+   * if file already exists we skip it, unless drive's size or
+   * md5Checksum says the content changed (same name, new cut).
    *
    * download file with their path as destination.
    *
+   * if we already have the exact same content somewhere else on disk
+   * (same md5) we hard link it instead of downloading it again.
+   *
+   * the file is streamed in chunks to a hidden partial file next to
+   * the destination (see LocalService.partialFile) and only renamed
+   * to its real name once it's complete. if a partial file is already
+   * there from an interrupted download we resume it with a range request.
+   * memory use stays the same no matter how big the file is.
+   *
    * @param pf PathedFile we want to download. (pathed files are gdrive files)
    * @return true if file was downloaded.
    *
@@ -296,14 +614,103 @@ public class GDriveService
     final String id = pf.file().getId();
     final String path = Config.getProperty("downloadPath") + pf.path();
     final String name = pf.file().getName();  
+    final java.io.File target = new java.io.File(path + name);
+    final java.io.File partial = LocalService.partialFile(path, name);
     try
     {
-      if(new java.io.File(path + name).exists())
+      final String remoteMd5 = pf.file().getMd5Checksum();
+      if(target.exists())
+      {
+        if(!hasChanged(pf, target))
+        {
+          //make sure the manifest knows which drive file this is.
+          String localMd5 = LocalService.manifest().md5(target);
+          if(localMd5 != null)
+            LocalService.manifest().record(target, id, localMd5, pf.file().getMimeType());
+          return false;
+        }
+        log(String.format("%s%s changed in drive (modified %s), downloading the new version.", pf.path(), name, pf.file().getModifiedTime()));
+      }
+
+      //same content already on disk, link it instead of downloading it again.
+      final java.io.File twin = LocalService.manifest().findByMd5(remoteMd5);
+      if(twin != null && !twin.equals(target))
+      {
+        try
+        {
+          Files.deleteIfExists(partial.toPath());
+          Files.createLink(partial.toPath(), twin.toPath());
+          publish(partial, target, pf, remoteMd5);
+          log(String.format("LINKED DUPLICATE FILE\n file:%s\n same as:%s\n", target, twin));
+          return true;
+        }
+        catch(Exception e)
+        {
+          log("couldn't hard link " + twin + " (" + e.getMessage() + "), downloading instead.");
+        }
+      }
+
+      final Long size = pf.file().getSize();
+      long resumeFrom = partial.exists() ? partial.length() : 0L;
+      if(size != null && resumeFrom > size)
+      {
+        log("partial file is bigger than the drive file, starting over: " + partial);
+        Files.delete(partial.toPath());
+        resumeFrom = 0L;
+      }
+      if(resumeFrom > 0)
+        log(String.format("resuming %s from byte %d", name, resumeFrom));
+
+      //hash while we write so the result can be checked against drive's md5.
+      final MessageDigest digest = LocalService.newDigest();
+      if(resumeFrom > 0)
+        LocalService.update(digest, partial);
+
+      if(size == null || resumeFrom < size)
+      {
+        //no retry loop here, the partial file is resumed on the next sync.
+        if(!breaker.allowRequest())
+          throw new IOException("drive circuit breaker is open, download refused.");
+        Drive.Files.Get request = drive.files().get(id);
+        request.getMediaHttpDownloader().setChunkSize(DOWNLOAD_CHUNK_SIZE).setBytesDownloaded(resumeFrom);
+        try(OutputStream os = new DigestOutputStream(engine.track(pf, new BufferedOutputStream(new FileOutputStream(partial, true)), resumeFrom), digest))
+        {
+          request.executeMediaAndDownloadTo(os);
+          breaker.recordSuccess();
+        }
+        catch(IOException e)
+        {
+          if(isTransient(e))
+            breaker.recordFailure();
+          else
+          {
+            if(isAuthFailure(e))
+              breaker.release();
+            else
+              breaker.recordSuccess();
+            handleFailure(e);
+          }
+          throw e;
+        }
+        catch(RuntimeException e)
+        {
+          breaker.release();
+          throw e;
+        }
+      }
+
+      if(!partial.exists())
+        partial.createNewFile(); //empty drive file, nothing was requested.
+
+      final String md5 = LocalService.toHex(digest.digest());
+      if(remoteMd5 != null && !remoteMd5.equalsIgnoreCase(md5))
+      {
+        log(String.format("md5 mismatch for %s (expected %s got %s), discarding it.", name, remoteMd5, md5));
+        Files.delete(partial.toPath());
         return false;
-      ByteArrayOutputStream os = new ByteArrayOutputStream();
-      drive.files().get(id).executeMediaAndDownloadTo(os);
-      FileOutputStream fos = new FileOutputStream(path + name);
-      os.writeTo(fos);
+      }
+
+      publish(partial, target, pf, md5);
       log(String.format("SUCCESSFULLY DOWNLOADED NEW FILE\n file:%s\n driveID:%s\n path:%s\n", name, id, path));
       return true;
     }
@@ -316,26 +723,359 @@ public class GDriveService
     }
   }
 
+  /**
+   * Returns true if the local copy doesn't match the drive file anymore.
+   *
+   * size is checked first (free), then the md5 of the local file
+   * (hashed once, then cached in the media manifest).
+   * drive files without an md5 are never considered changed.
+   */
+  private boolean hasChanged(PathedFile pf, java.io.File local)
+  {
+    final Long size = pf.file().getSize();
+    if(size != null && local.length() != size)
+      return true;
+    final String remoteMd5 = pf.file().getMd5Checksum();
+    if(remoteMd5 == null)
+      return false;
+    return !remoteMd5.equalsIgnoreCase(LocalService.manifest().md5(local));
+  }
+
+  /**
+   * Picks which of two drive files with the same local path gets downloaded.
+   *
+   * the newest one wins, ties go to the smaller id, so every sync
+   * picks the same file and the other never replaces it.
+   */
+  private static PathedFile preferred(PathedFile a, PathedFile b)
+  {
+    long aModified = a.file().getModifiedTime() == null ? 0L : a.file().getModifiedTime().getValue();
+    long bModified = b.file().getModifiedTime() == null ? 0L : b.file().getModifiedTime().getValue();
+    if(aModified != bModified)
+      return aModified > bModified ? a : b;
+    return a.file().getId().compareTo(b.file().getId()) <= 0 ? a : b;
+  }
+
+  /**
+   * Moves a finished partial file to its real name in one step
+   * so nobody ever sees it half written, replacing any older version.
+   * the file is then recorded in the media manifest.
+   */
+  private void publish(java.io.File partial, java.io.File target, PathedFile pf, String md5) throws IOException
+  {
+    Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    LocalService.manifest().record(target, pf.file().getId(), md5, pf.file().getMimeType());
+  }
+
+  /**
+   * Gets the files that changed in the app folder since the last sync.
+   *
+   * we read the drive's changes feed starting at the saved page token
+   * and only keep files that live inside a folder we already know about.
+   * the new page token is held in pendingPageToken until the caller
+   * commits it (after the downloads actually happened).
+   *
+   * local files that were removed, trashed, moved or renamed in drive
+   * are collected in pendingStalePaths for the janitor to mirror.
+   * folders that were added or removed go to pendingFolders, the sync
+   * state only changes once the token is committed, so a retry still
+   * knows where a removed folder was.
+   *
+   * @return list of changed pathed files (maybe empty),
+   *         or null if we need to fall back to a full crawl.
+   */
+  public List<PathedFile> getChangedFiles()
+  {
+    if(!syncState.hasPageToken())
+      return null;
+
+    try
+    {
+      pendingFolders = new HashMap<>();
+      List<Change> changes = new ArrayList<>();
+      String pageToken = syncState.getPageToken();
+      String newStartPageToken = null;
+      while(pageToken != null)
+      {
+        ChangeList result = execute(drive.changes().list(pageToken).setSpaces("drive").setIncludeRemoved(true)
+          .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(" + FILE_FIELDS + ", trashed))"));
+        changes.addAll(result.getChanges());
+        if(result.getNewStartPageToken() != null)
+          newStartPageToken = result.getNewStartPageToken();
+        pageToken = result.getNextPageToken();
+      }
+
+      //split folders from files, folders need to be placed first.
+      List<File> folders = new ArrayList<>();
+      List<File> files = new ArrayList<>();
+      List<String> stale = new ArrayList<>();
+      for(Change change : changes)
+      {
+        File file = change.getFile();
+        boolean gone = Boolean.TRUE.equals(change.getRemoved()) || file == null || Boolean.TRUE.equals(file.getTrashed());
+        if(gone)
+        {
+          String folderPath = folderPath(change.getFileId());
+          if(folderPath != null)
+            stale.addAll(LocalService.manifest().paths(new java.io.File(Config.getProperty("downloadPath") + folderPath).getAbsolutePath(), true));
+          else
+            stale.addAll(LocalService.manifest().pathsForDriveId(change.getFileId()));
+          pendingFolders.put(change.getFileId(), null);
+        }
+        else if(FOLDER_MIME_TYPE.equals(file.getMimeType()))
+          folders.add(file);
+        else
+          files.add(file);
+      }
+
+      //keep placing folders until nothing else resolves (parents can show up after children).
+      boolean placed = true;
+      while(placed)
+      {
+        placed = false;
+        Iterator<File> it = folders.iterator();
+        while(it.hasNext())
+        {
+          File folder = it.next();
+          String parentPath = parentPath(folder);
+          if(parentPath == null)
+            continue;
+          String path = parentPath + folder.getName() + "/";
+          String knownPath = folderPath(folder.getId());
+          if(knownPath != null && !knownPath.equals(path))
+          {
+            log("folder " + knownPath + " was moved or renamed, falling back to a full crawl.");
+            return null;
+          }
+          pendingFolders.put(folder.getId(), path);
+          it.remove();
+          placed = true;
+        }
+      }
+
+      //a folder we knew about that can't be placed anymore was moved out of the app folder.
+      for(File folder : folders)
+      {
+        if(folderPath(folder.getId()) != null)
+        {
+          log("folder " + folder.getName() + " left the app folder, falling back to a full crawl.");
+          return null;
+        }
+      }
+
+      List<PathedFile> changed = new ArrayList<>();
+      for(File file : files)
+      {
+        String path = parentPath(file);
+        if(path != null)
+          changed.add(new PathedFile(file, path));
+      }
+
+      //old copies of files that were moved or renamed.
+      for(File file : files)
+      {
+        String path = parentPath(file);
+        String expected = (path == null) ? null : localPath(new PathedFile(file, path));
+        for(String local : LocalService.manifest().pathsForDriveId(file.getId()))
+          if(!local.equals(expected))
+            stale.add(local);
+      }
+
+      log(String.format("changes feed had %d changes, %d in the app folder.", changes.size(), changed.size()));
+      pendingPageToken = newStartPageToken;
+      pendingStalePaths = stale;
+      return changed;
+    }
+    catch(GoogleJsonResponseException e)
+    {
+      int code = e.getStatusCode();
+      if(code == 400 || code == 404 || code == 410)
+      {
+        log("saved page token was rejected (" + code + "), falling back to a full crawl.");
+        syncState.clear();
+        return null;
+      }
+      log("failed to get changes (see stack trace)");
+      e.printStackTrace();
+      handleFailure(e);
+      return Collections.emptyList();
+    }
+    catch(Exception e)
+    {
+      log("failed to get changes (see stack trace)");
+      e.printStackTrace();
+      handleFailure(e);
+      return Collections.emptyList();
+    }
+  }
+
+  /** Returns the absolute local path a pathed file is downloaded to. */
+  private static String localPath(PathedFile pf)
+  {
+    return new java.io.File(Config.getProperty("downloadPath") + pf.path() + pf.file().getName()).getAbsolutePath();
+  }
+
+  /**
+   * Returns the local path of a drive folder, counting this pass's changes.
+   *
+   * @return path relative to the app folder or null if the folder is unknown (or removed).
+   */
+  private String folderPath(String folderId)
+  {
+    if(pendingFolders != null && pendingFolders.containsKey(folderId))
+      return pendingFolders.get(folderId);
+    return syncState.folderPath(folderId);
+  }
+
+  /**
+   * Returns the local path of the first known parent of a drive file.
+   *
+   * @return path relative to the app folder or null if no parent is known.
+   */
+  private String parentPath(File file)
+  {
+    if(file.getParents() == null)
+      return null;
+    for(String parent : file.getParents())
+    {
+      String path = folderPath(parent);
+      if(path != null)
+        return path;
+    }
+    return null;
+  }
+
+  /**
+   * Crawls the whole app folder and remembers where the changes feed starts.
+   *
+   * the start page token is grabbed BEFORE crawling so anything that changes
+   * while we crawl still shows up in the next incremental sync.
+   */
+  private List<PathedFile> getAllFiles()
+  {
+    //the crawl puts every folder in the state itself, nothing from the changes feed counts.
+    pendingFolders = null;
+    syncState.clear();
+    if(INCREMENTAL_SYNC)
+    {
+      try
+      {
+        pendingPageToken = execute(drive.changes().getStartPageToken()).getStartPageToken();
+      }
+      catch(Exception e)
+      {
+        log("failed to get a start page token, next sync will crawl again. (see stack trace)");
+        e.printStackTrace();
+      }
+    }
+    List<PathedFile> files = getFileList();
+    if(lastCallFailed)
+      pendingPageToken = null;
+    return files;
+  }
+
+  /**
+   * Downloads any new media from the app folder.
+   *
+   * after the first full crawl we only ask drive for what changed
+   * since the last sync (see getChangedFiles), a full crawl only
+   * happens again if the saved page token is missing or rejected.
+   *
+   * once everything is downloaded the janitor mirrors deletions
+   * (if mirrorMode is on) and enforces the disk quota.
+   *
+   * @return true if any file was downloaded.
+   */
   public boolean downloadMedia()
   {
     try{
       boolean changed = false;
-      List<PathedFile> files = getFileList();
-      if(files.isEmpty())
+      pendingPageToken = null;
+      pendingStalePaths = null;
+      pendingFolders = null;
+      lastCallFailed = false;
+
+      List<PathedFile> files = INCREMENTAL_SYNC ? getChangedFiles() : null;
+      if(files == null)
       {
-        log("getFileList() got no files we are going to early exit downloadMedia()");
-        return false;
+        log("doing a full crawl of " + MAIN_FOLDER_NAME);
+        files = getAllFiles();
+        if(files.isEmpty())
+        {
+          log("getFileList() got no files we are going to early exit downloadMedia()");
+          return false;
+        }
       }
+
       log("downloading media...");
+      //one download per local file, drive allows the same name twice in a folder.
+      Map<String, PathedFile> byTarget = new LinkedHashMap<>();
+      Set<String> expected = new HashSet<>();
       for(PathedFile pf : files)
       {
         LocalService.checkDir(Config.getProperty("downloadPath") + pf.path());
         String mt = pf.file().getMimeType();
-        if(mt.contains("video") || mt.contains("image"))
-          if(downloadPathedFile(pf)) //DOWNLOAD DRIVE FILE.
-            changed = true;
+        if(!mt.contains("video") && !mt.contains("image"))
+          continue;
+        final String local = localPath(pf);
+        expected.add(local);
+        if(janitor.shouldSkip(local))
+        {
+          log("skipping evicted file " + pf.path() + pf.file().getName());
+          continue;
+        }
+        PathedFile other = byTarget.get(local);
+        if(other != null)
+        {
+          PathedFile kept = preferred(pf, other);
+          log(String.format("%s%s is in drive more than once (%s and %s), only downloading %s.",
+                pf.path(), pf.file().getName(), other.file().getId(), pf.file().getId(), kept.file().getId()));
+          pf = kept;
+        }
+        byTarget.put(local, pf);
       }
+      List<PathedFile> media = new ArrayList<>(byTarget.values());
+      changed = engine.downloadAll(media, this::downloadPathedFile); //DOWNLOAD DRIVE FILES.
       log("media downloads complete.");
+
+      boolean complete = true;
+      for(PathedFile pf : media)
+      {
+        java.io.File local = new java.io.File(Config.getProperty("downloadPath") + pf.path() + pf.file().getName());
+        if(!local.exists() || hasChanged(pf, local))
+          complete = false;
+      }
+      LocalService.manifest().save();
+
+      //a full crawl tells us everything drive has, anything else from drive on disk is stale.
+      //files copied in by hand (no drive id) aren't ours to remove.
+      if(pendingStalePaths == null && complete && !lastCallFailed)
+      {
+        pendingStalePaths = new ArrayList<>();
+        for(MediaManifest.Record record : LocalService.manifest().records())
+          if(!record.driveId().isEmpty() && !expected.contains(record.path()))
+            pendingStalePaths.add(record.path());
+      }
+      if(pendingStalePaths != null && complete && !lastCallFailed)
+        janitor.mirror(pendingStalePaths);
+      janitor.enforceQuota();
+
+      //only move the page token forward once everything it covers is on disk.
+      if(pendingPageToken != null && complete && !lastCallFailed)
+      {
+        if(pendingFolders != null)
+          for(Map.Entry<String, String> folder : pendingFolders.entrySet())
+          {
+            if(folder.getValue() == null)
+              syncState.removeFolder(folder.getKey());
+            else
+              syncState.putFolder(folder.getKey(), folder.getValue());
+          }
+        syncState.setPageToken(pendingPageToken);
+        syncState.save();
+      }
+      else if(pendingPageToken != null)
+        log("some downloads failed, keeping the old page token so they are retried.");
       return changed;
     } catch(Exception e)
     {
@@ -345,6 +1085,12 @@ public class GDriveService
     }
   }
 
+  /** Returns the janitor (mirroring and eviction metrics). */
+  public MediaJanitor janitor() { return janitor; }
+
+  /** Returns the download engine (progress and throughput for monitoring). */
+  public DownloadEngine downloadEngine() { return engine; }
+
   private void log(String message)
   {
     System.out.println("[GDriveService] " + message);
@@ -0,0 +1,263 @@
+package com.kusa.service;
+
+import com.kusa.Config;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps photos already scaled for the panels.
+ *
+ * images are keyed by path, mtime and the size they are scaled to,
+ * so an edited photo or a different panel size is a new entry.
+ *
+ * two tiers:
+ *  - memory: LRU bounded by bytes ('imageCacheMB', default 64).
+ *  - disk: a PixelStore per panel size ('imageDiskCachePath', default
+ *    $HOME/.jinzo/pixels/) bounded by 'imageDiskCacheMB' (default 256).
+ *    a photo that fell out of memory is copied out of a mapped file, no decoding.
+ *
+ * the pixel stores are kept in sync with the photos folder in the
+ * background: at startup and whenever the media index sees a photo
+ * change. a new screen resolution gets a new store and the old one
+ * is deleted.
+ *
+ * the returned images are shared, DON'T draw on them.
+ */
+public class ImageCache
+{
+  //wait this long after the last photo change before syncing the pixel stores.
+  private static final long SYNC_DELAY_MILLIS = 2000L;
+
+  private final long memoryBudget;
+  private final long diskBudget;
+  private final String diskPath;
+  private final Map<String, PixelStore> stores;
+  private final ScheduledExecutorService syncer;
+  private ScheduledFuture<?> pendingSync;
+  private final LinkedHashMap<String, BufferedImage> memory;
+  private long memoryBytes;
+
+  private final AtomicLong memoryHits;
+  private final AtomicLong diskHits;
+  private final AtomicLong misses;
+  private final AtomicLong decodeNanos;
+
+  public ImageCache()
+  {
+    this(Long.parseLong(Config.getProperty("imageCacheMB", "64")) * 1024L * 1024L,
+         Long.parseLong(Config.getProperty("imageDiskCacheMB", "256")) * 1024L * 1024L,
+         Config.getProperty("imageDiskCachePath", Config.getAppPath() + "pixels/"));
+  }
+
+  public ImageCache(long memoryBudget, long diskBudget, String diskPath)
+  {
+    this.memoryBudget = memoryBudget;
+    this.diskBudget = diskBudget;
+    this.diskPath = diskPath;
+    this.stores = new ConcurrentHashMap<>();
+    this.memory = new LinkedHashMap<>(16, 0.75f, true);
+    this.memoryBytes = 0L;
+    this.memoryHits = new AtomicLong();
+    this.diskHits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.decodeNanos = new AtomicLong();
+    LocalService.checkDir(diskPath);
+
+    this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "pixel-store-sync");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      return t;
+    });
+    final String photosDir = Paths.get(LocalService.photosPath).toAbsolutePath().normalize().toString();
+    LocalService.index().subscribe((kind, path) -> {
+      if(path.startsWith(photosDir))
+        scheduleSync();
+    });
+  }
+
+  /**
+   * Returns the photo scaled to exactly width x height.
+   *
+   * @param path path of the original photo.
+   * @return scaled image (shared, don't modify it).
+   * @throws IOException if the photo can't be read.
+   */
+  public BufferedImage get(String path, int width, int height) throws IOException
+  {
+    File original = new File(path);
+    if(!original.exists())
+      throw new IOException("no such image " + path);
+    final long mtime = original.lastModified();
+    final String key = String.format("%s|%d|%dx%d", original.getAbsolutePath(), mtime, width, height);
+
+    BufferedImage image;
+    synchronized(this)
+    {
+      image = memory.get(key);
+    }
+    if(image != null)
+    {
+      memoryHits.incrementAndGet();
+      return image;
+    }
+
+    PixelStore store = store(width, height);
+    image = store.load(path, mtime);
+    if(image != null)
+      diskHits.incrementAndGet();
+    else
+    {
+      misses.incrementAndGet();
+      long start = System.nanoTime();
+      image = decode(original, width, height);
+      decodeNanos.addAndGet(System.nanoTime() - start);
+      store.put(path, mtime, image);
+    }
+
+    remember(key, image);
+    return image;
+  }
+
+  /**
+   * Returns the pixel store for a panel size.
+   *
+   * the first time a size is asked for, the stores of sizes nobody
+   * uses anymore (old screen resolutions) are deleted and a sync of
+   * the new store is started.
+   */
+  private PixelStore store(int width, int height)
+  {
+    PixelStore store = stores.get(width + "x" + height);
+    if(store != null)
+      return store;
+    synchronized(stores)
+    {
+      store = stores.computeIfAbsent(width + "x" + height, k -> new PixelStore(diskPath, width, height, diskBudget));
+      File[] dirs = new File(diskPath).listFiles(File::isDirectory);
+      if(dirs != null)
+        for(File dir : dirs)
+          if(!stores.containsKey(dir.getName()))
+          {
+            log("resolution changed, deleting old pixel store " + dir);
+            deleteTree(dir);
+          }
+    }
+    scheduleSync();
+    return store;
+  }
+
+  /** Syncs every pixel store with the photos folder, a little after the last change. */
+  private synchronized void scheduleSync()
+  {
+    if(stores.isEmpty())
+      return;
+    if(pendingSync != null)
+      pendingSync.cancel(false);
+    pendingSync = syncer.schedule(() -> {
+      Set<String> photos = LocalService.getLocalMRLS("photos/", true);
+      for(PixelStore store : stores.values())
+        store.sync(photos);
+    }, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void deleteTree(File dir)
+  {
+    File[] files = dir.listFiles();
+    if(files != null)
+      for(File f : files)
+        if(f.isDirectory())
+          deleteTree(f);
+        else
+          f.delete();
+    dir.delete();
+  }
+
+  /**
+   * Decodes and scales the original photo (see ImageDecoder).
+   */
+  private BufferedImage decode(File original, int width, int height) throws IOException
+  {
+    return ImageDecoder.decode(original, width, height);
+  }
+
+  private synchronized void remember(String key, BufferedImage image)
+  {
+    long bytes = bytes(image);
+    if(bytes > memoryBudget)
+      return;
+    BufferedImage old = memory.put(key, image);
+    if(old != null)
+      memoryBytes -= bytes(old);
+    memoryBytes += bytes;
+
+    Iterator<Map.Entry<String, BufferedImage>> it = memory.entrySet().iterator();
+    while(memoryBytes > memoryBudget && it.hasNext())
+    {
+      Map.Entry<String, BufferedImage> eldest = it.next();
+      if(eldest.getKey().equals(key))
+        continue;
+      memoryBytes -= bytes(eldest.getValue());
+      it.remove();
+    }
+  }
+
+  private static long bytes(BufferedImage image)
+  {
+    return 4L * image.getWidth() * image.getHeight();
+  }
+
+  /** Drops everything kept in memory (the disk tier stays). */
+  public synchronized void clearMemory()
+  {
+    memory.clear();
+    memoryBytes = 0L;
+  }
+
+  //stats.
+  public long memoryHits() { return memoryHits.get(); }
+  public long diskHits() { return diskHits.get(); }
+  public long misses() { return misses.get(); }
+  public synchronized long memoryBytes() { return memoryBytes; }
+  public synchronized int memoryEntries() { return memory.size(); }
+
+  /** Returns the bytes used by the pixel stores on disk. */
+  public long diskBytes()
+  {
+    long used = 0;
+    for(PixelStore store : stores.values())
+      used += store.usedBytes();
+    return used;
+  }
+
+  /** Returns the average time to decode and scale an original photo in millis. */
+  public double averageDecodeMillis()
+  {
+    long count = misses.get();
+    return count > 0 ? decodeNanos.get() / 1_000_000d / count : 0d;
+  }
+
+  /** Returns a one line summary of the stats for the logs. */
+  public String stats()
+  {
+    return String.format("memory hits %d, disk hits %d, misses %d (avg decode %.1fms), %d images in %dKB",
+        memoryHits(), diskHits(), misses(), averageDecodeMillis(), memoryEntries(), memoryBytes() / 1024);
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[ImageCache] " + message);
+  }
+}
@@ -0,0 +1,190 @@
+package com.kusa.service;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.imgscalr.Scalr;
+
+/**
+ * Class that decodes photos straight to (about) the size we show them at.
+ *
+ * phone photos are often 6000x4000 and we show them in a 640x1080 panel.
+ * instead of decoding the full raster and scaling it down, the reader
+ * skips pixels while decoding (source subsampling) so the decoded image
+ * is just bigger than the panel. Scalr only does the last small step.
+ *
+ * the exif orientation of jpegs is applied, so portrait phone photos
+ * aren't shown sideways.
+ */
+public class ImageDecoder
+{
+  private ImageDecoder() {}
+
+  /**
+   * Decodes a photo scaled to exactly width x height (FIT_EXACT, like the panels always did).
+   *
+   * @throws IOException if the photo can't be read.
+   */
+  public static BufferedImage decode(File file, int width, int height) throws IOException
+  {
+    final int orientation = orientation(file);
+    //for rotated photos the stored raster is sideways.
+    final boolean sideways = orientation >= 5 && orientation <= 8;
+    final int rawWidth = sideways ? height : width;
+    final int rawHeight = sideways ? width : height;
+
+    BufferedImage decoded = null;
+    try(ImageInputStream in = ImageIO.createImageInputStream(file))
+    {
+      if(in == null)
+        throw new IOException("can't open image " + file);
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if(!readers.hasNext())
+        throw new IOException("unsupported image " + file);
+
+      ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput(in, true, true);
+        //header only, nothing is decoded yet.
+        int sourceWidth = reader.getWidth(0);
+        int sourceHeight = reader.getHeight(0);
+        int stepX = Math.max(1, sourceWidth / Math.max(1, rawWidth));
+        int stepY = Math.max(1, sourceHeight / Math.max(1, rawHeight));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        if(stepX > 1 || stepY > 1)
+          param.setSourceSubsampling(stepX, stepY, 0, 0);
+        decoded = reader.read(0, param);
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+
+    BufferedImage upright = orient(decoded, orientation);
+    BufferedImage scaled = Scalr.resize(upright, Scalr.Method.BALANCED, Scalr.Mode.FIT_EXACT, width, height);
+    if(upright != decoded)
+      upright.flush();
+    decoded.flush();
+    return scaled;
+  }
+
+  /**
+   * Rotates/flips an image according to its exif orientation (1-8).
+   */
+  private static BufferedImage orient(BufferedImage image, int orientation)
+  {
+    switch(orientation)
+    {
+      case 2:
+        return Scalr.rotate(image, Scalr.Rotation.FLIP_HORZ);
+      case 3:
+        return Scalr.rotate(image, Scalr.Rotation.CW_180);
+      case 4:
+        return Scalr.rotate(image, Scalr.Rotation.FLIP_VERT);
+      case 5:
+        return flipAfter(Scalr.rotate(image, Scalr.Rotation.CW_90));
+      case 6:
+        return Scalr.rotate(image, Scalr.Rotation.CW_90);
+      case 7:
+        return flipAfter(Scalr.rotate(image, Scalr.Rotation.CW_270));
+      case 8:
+        return Scalr.rotate(image, Scalr.Rotation.CW_270);
+      default:
+        return image;
+    }
+  }
+
+  private static BufferedImage flipAfter(BufferedImage rotated)
+  {
+    BufferedImage flipped = Scalr.rotate(rotated, Scalr.Rotation.FLIP_HORZ);
+    rotated.flush();
+    return flipped;
+  }
+
+  /**
+   * Reads the exif orientation of a jpeg.
+   *
+   * only the start of the file is read (the markers before the image data).
+   *
+   * @return orientation 1-8, 1 (normal) if it isn't a jpeg or has no exif.
+   */
+  static int orientation(File file)
+  {
+    try(InputStream raw = Files.newInputStream(file.toPath());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(raw)))
+    {
+      if(in.readUnsignedShort() != 0xFFD8)
+        return 1;
+      while(true)
+      {
+        int marker = in.readUnsignedShort();
+        if((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9)
+          return 1; //image data starts, no exif.
+        int length = in.readUnsignedShort() - 2;
+        if(length < 0)
+          return 1;
+        if(marker != 0xFFE1)
+        {
+          in.skipBytes(length);
+          continue;
+        }
+
+        byte[] app1 = new byte[length];
+        in.readFully(app1);
+        if(length < 14 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i' || app1[3] != 'f')
+          continue;
+        return exifOrientation(app1, 6);
+      }
+    }
+    catch(IOException | RuntimeException e)
+    {
+      return 1;
+    }
+  }
+
+  /**
+   * Finds the orientation tag (0x0112) in IFD0 of a tiff block.
+   */
+  private static int exifOrientation(byte[] b, int tiff)
+  {
+    boolean little = b[tiff] == 'I';
+    int ifd = tiff + readInt(b, tiff + 4, little);
+    int entries = readShort(b, ifd, little);
+    for(int i = 0; i < entries; i++)
+    {
+      int entry = ifd + 2 + i * 12;
+      if(entry + 12 > b.length)
+        break;
+      if(readShort(b, entry, little) == 0x0112)
+      {
+        int value = readShort(b, entry + 8, little);
+        return (value >= 1 && value <= 8) ? value : 1;
+      }
+    }
+    return 1;
+  }
+
+  private static int readShort(byte[] b, int i, boolean little)
+  {
+    return little ? (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8
+                  : (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] b, int i, boolean little)
+  {
+    return little ? readShort(b, i, true) | readShort(b, i + 2, true) << 16
+                  : readShort(b, i, false) << 16 | readShort(b, i + 2, false);
+  }
+}
@@ -0,0 +1,254 @@
+package com.kusa.service;
+
+import com.kusa.Config;
+import com.kusa.util.MediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class that walks the media folders and finds the files we can actually play.
+ *
+ * every directory is listed with a DirectoryStream in its own fork join
+ * task, so big trees are scanned on all cores. a file only counts as
+ * media if its extension says video or image AND its first bytes agree
+ * (so .DS_Store, desktop.ini, half copied files and renamed junk never
+ * reach the playlists). hidden files and partial downloads are skipped.
+ *
+ * 'scanThreads' property sets the pool size (default is one per core).
+ */
+public class LibraryScanner
+{
+  private static final int SCAN_THREADS = Integer.parseInt(Config.getProperty("scanThreads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+  private static final int MAGIC_LENGTH = 16;
+
+  private final ForkJoinPool pool;
+
+  public LibraryScanner() { this(SCAN_THREADS); }
+  public LibraryScanner(int threads)
+  {
+    this.pool = new ForkJoinPool(Math.max(1, threads));
+  }
+
+  /**
+   * Scans a directory tree for media.
+   *
+   * @param root directory to start from.
+   * @param recursive include media from nested directories.
+   * @return every video and image found (unordered).
+   */
+  public List<ScannedFile> scan(String root, boolean recursive)
+  {
+    long start = System.nanoTime();
+    Path dir = Paths.get(root).toAbsolutePath().normalize();
+    if(!Files.isDirectory(dir))
+      return new ArrayList<>();
+    List<ScannedFile> found = pool.invoke(new ScanTask(dir, recursive));
+    log(String.format("scanned %s, %d media files in %.1fms", dir, found.size(), (System.nanoTime() - start) / 1_000_000d));
+    return found;
+  }
+
+  public void shutdown() { pool.shutdown(); }
+
+  /**
+   * Lists one directory and forks a task for each directory inside it.
+   */
+  private static class ScanTask extends RecursiveTask<List<ScannedFile>>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+    private final boolean recursive;
+
+    ScanTask(Path dir, boolean recursive)
+    {
+      this.dir = dir;
+      this.recursive = recursive;
+    }
+
+    @Override
+    protected List<ScannedFile> compute()
+    {
+      List<ScannedFile> found = new ArrayList<>();
+      List<ScanTask> children = new ArrayList<>();
+      try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+      {
+        for(Path entry : entries)
+        {
+          if(entry.getFileName().toString().startsWith("."))
+            continue;
+          BasicFileAttributes attrs;
+          try
+          {
+            attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          }
+          catch(IOException e)
+          {
+            continue; //removed while we were looking.
+          }
+
+          if(attrs.isDirectory())
+          {
+            if(recursive)
+            {
+              ScanTask child = new ScanTask(entry, true);
+              child.fork();
+              children.add(child);
+            }
+          }
+          else if(attrs.isRegularFile())
+          {
+            MediaType type = classify(entry, attrs.size());
+            if(type != MediaType.OTHER)
+              found.add(new ScannedFile(entry.toString(), type, attrs.size(), attrs.lastModifiedTime().toMillis()));
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        System.out.println("[LibraryScanner] failed to list " + dir + " " + e.getMessage());
+      }
+
+      for(ScanTask child : children)
+        found.addAll(child.join());
+      return found;
+    }
+  }
+
+  /**
+   * Returns what kind of media a file is.
+   *
+   * the extension has to be a video or image type and the file's
+   * first bytes have to look like one of the formats we know.
+   *
+   * @return VIDEO, IMAGE or OTHER (not something we should play).
+   */
+  public static MediaType classify(Path file)
+  {
+    try
+    {
+      return classify(file, Files.size(file));
+    }
+    catch(IOException e)
+    {
+      return MediaType.OTHER;
+    }
+  }
+
+  private static MediaType classify(Path file, long size)
+  {
+    String name = file.getFileName().toString();
+    if(size <= 0 || name.startsWith(".") || LocalService.isPartial(name))
+      return MediaType.OTHER;
+    MediaType byName = MediaType.fromMimeType(LocalService.mimeType(name));
+    if(byName == MediaType.OTHER)
+      return MediaType.OTHER;
+
+    byte[] head = new byte[MAGIC_LENGTH];
+    int read = 0;
+    try(InputStream in = Files.newInputStream(file))
+    {
+      int n;
+      while(read < head.length && (n = in.read(head, read, head.length - read)) > 0)
+        read += n;
+    }
+    catch(IOException e)
+    {
+      return MediaType.OTHER;
+    }
+
+    MediaType byContent = sniff(head, read);
+    //an mp4 named .mov or a png named .jpg is fine, an image named .mp4 is not.
+    return byContent == byName ? byName : MediaType.OTHER;
+  }
+
+  /**
+   * Guesses the media type from the first bytes of a file.
+   */
+  static MediaType sniff(byte[] b, int len)
+  {
+    //images.
+    if(starts(b, len, 0, 0xFF, 0xD8, 0xFF))
+      return MediaType.IMAGE; //jpeg
+    if(starts(b, len, 0, 0x89, 'P', 'N', 'G'))
+      return MediaType.IMAGE;
+    if(starts(b, len, 0, 'G', 'I', 'F', '8'))
+      return MediaType.IMAGE;
+    if(starts(b, len, 0, 'B', 'M'))
+      return MediaType.IMAGE;
+    if(starts(b, len, 0, 'R', 'I', 'F', 'F') && starts(b, len, 8, 'W', 'E', 'B', 'P'))
+      return MediaType.IMAGE;
+    if(starts(b, len, 0, 'I', 'I', 0x2A, 0x00) || starts(b, len, 0, 'M', 'M', 0x00, 0x2A))
+      return MediaType.IMAGE; //tiff
+
+    //videos.
+    if(starts(b, len, 4, 'f', 't', 'y', 'p') || starts(b, len, 4, 'm', 'o', 'o', 'v')
+        || starts(b, len, 4, 'm', 'd', 'a', 't') || starts(b, len, 4, 'w', 'i', 'd', 'e')
+        || starts(b, len, 4, 'f', 'r', 'e', 'e') || starts(b, len, 4, 's', 'k', 'i', 'p'))
+      return MediaType.VIDEO; //mp4, mov, m4v, 3gp
+    if(starts(b, len, 0, 0x1A, 0x45, 0xDF, 0xA3))
+      return MediaType.VIDEO; //mkv, webm
+    if(starts(b, len, 0, 'R', 'I', 'F', 'F') && starts(b, len, 8, 'A', 'V', 'I', ' '))
+      return MediaType.VIDEO;
+    if(starts(b, len, 0, 0x00, 0x00, 0x01, 0xBA) || starts(b, len, 0, 0x00, 0x00, 0x01, 0xB3))
+      return MediaType.VIDEO; //mpeg program/elementary stream
+    if(len > 0 && (b[0] & 0xFF) == 0x47)
+      return MediaType.VIDEO; //mpeg transport stream sync byte
+    if(starts(b, len, 0, 'F', 'L', 'V'))
+      return MediaType.VIDEO;
+    if(starts(b, len, 0, 0x30, 0x26, 0xB2, 0x75))
+      return MediaType.VIDEO; //asf, wmv
+    if(starts(b, len, 0, 'O', 'g', 'g', 'S'))
+      return MediaType.VIDEO;
+    return MediaType.OTHER;
+  }
+
+  private static boolean starts(byte[] b, int len, int offset, int... magic)
+  {
+    if(len < offset + magic.length)
+      return false;
+    for(int i = 0; i < magic.length; i++)
+      if((b[offset + i] & 0xFF) != magic[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * A media file found by a scan.
+   */
+  public static class ScannedFile
+  {
+    private final String path;
+    private final MediaType type;
+    private final long size;
+    private final long mtime;
+
+    ScannedFile(String path, MediaType type, long size, long mtime)
+    {
+      this.path = path;
+      this.type = type;
+      this.size = size;
+      this.mtime = mtime;
+    }
+
+    public String path() { return path; }
+    public MediaType type() { return type; }
+    public long size() { return size; }
+    public long mtime() { return mtime; }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[LibraryScanner] " + message);
+  }
+}
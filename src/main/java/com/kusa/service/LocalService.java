@@ -1,11 +1,28 @@
 package com.kusa.service;
 import com.kusa.Config;
+import com.kusa.util.MediaType;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.HashSet;
-import java.util.Queue;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.ArrayList;
 
 
 public class LocalService
@@ -15,6 +32,49 @@ public class LocalService
   public static final String videosPath = Config.getProperty("downloadPath") + "videos/";
   public static final String photosPath = Config.getProperty("downloadPath") + "photos/";
 
+  //downloads in progress are written to ".<name>.part" and renamed once complete.
+  public static final String PARTIAL_SUFFIX = ".part";
+
+  //manifest of everything in the download path, see MediaManifest.
+  private static final MediaManifest manifest = new MediaManifest(Config.getProperty("manifestPath", Config.getAppPath() + "manifest.bin"));
+
+  //live view of the media folders, see MediaIndex. started by the app.
+  private static final MediaIndex index = new MediaIndex(Config.getProperty("downloadPath"));
+
+  //durations, resolutions and codecs of the videos, see MediaProbe. started by the app.
+  private static final MediaProbe probe = new MediaProbe();
+  private static final MediaValidator validator = new MediaValidator();
+
+  private static final LibraryScanner scanner = new LibraryScanner();
+
+  /* attribute cache.
+   * 'attributeCacheMillis' how long a stat result is trusted (default 5s).
+   * media index events drop the entry right away, so while the index is
+   * running the TTL only matters for paths outside the download path.
+   */
+  private static final long ATTRIBUTE_TTL_NANOS = Long.parseLong(Config.getProperty("attributeCacheMillis", "5000")) * 1_000_000L;
+  private static final Map<String, FileInfo> attributes = new ConcurrentHashMap<>();
+  static {
+    index.subscribe((kind, path) -> attributes.remove(path));
+  }
+
+  /**
+   * Returns the partial (in progress) download file for a media file.
+   *
+   * @param dir directory the finished file will live in (ending in '/').
+   * @param name name of the finished file.
+   */
+  public static File partialFile(String dir, String name)
+  {
+    return new File(dir + "." + name + PARTIAL_SUFFIX);
+  }
+
+  /** Returns true if the file name belongs to an unfinished download. */
+  public static boolean isPartial(String name)
+  {
+    return name.startsWith(".") && name.endsWith(PARTIAL_SUFFIX);
+  }
+
   /**
    * Returns true if file exists on the local machine.
    *
@@ -22,10 +82,135 @@ public class LocalService
    */
   public static boolean fileExists(String fullName)
   {
-    File file = new File(fullName);
-    return file.exists();
+    return fileInfo(fullName).exists();
   } 
 
+  /**
+   * Returns the cached attributes of a file (stat'ing it if the cache is stale).
+   *
+   * @param fullName full path of the file.
+   */
+  public static FileInfo fileInfo(String fullName)
+  {
+    final long now = System.nanoTime();
+    FileInfo info = attributes.get(fullName);
+    if(info != null && now - info.checkedAt < ATTRIBUTE_TTL_NANOS)
+      return info;
+
+    info = stat(Paths.get(fullName), now);
+    attributes.put(fullName, info);
+    return info;
+  }
+
+  /**
+   * Returns the paths that exist, checking a whole track list in one pass.
+   *
+   * cached answers are used as is, the rest are grouped by folder and
+   * each folder is listed once instead of stat'ing every file.
+   *
+   * @param paths full paths of the files being checked.
+   * @return the paths that exist (same order as given).
+   */
+  public static List<String> filesExist(Collection<String> paths)
+  {
+    final long now = System.nanoTime();
+    Map<String, Boolean> known = new HashMap<>();
+    Map<Path, List<String>> missesByDir = new HashMap<>();
+    for(String path : paths)
+    {
+      FileInfo info = attributes.get(path);
+      if(info != null && now - info.checkedAt < ATTRIBUTE_TTL_NANOS)
+        known.put(path, info.exists());
+      else
+      {
+        Path parent = Paths.get(path).getParent();
+        if(parent == null)
+          known.put(path, fileInfo(path).exists());
+        else
+          missesByDir.computeIfAbsent(parent, k -> new ArrayList<>()).add(path);
+      }
+    }
+
+    for(Map.Entry<Path, List<String>> entry : missesByDir.entrySet())
+    {
+      Set<String> names = new HashSet<>();
+      try(DirectoryStream<Path> files = Files.newDirectoryStream(entry.getKey()))
+      {
+        for(Path file : files)
+          names.add(file.getFileName().toString());
+      }
+      catch(IOException e)
+      {
+        //folder is gone (or unreadable), nothing in it exists for us.
+      }
+      for(String path : entry.getValue())
+      {
+        boolean exists = names.contains(Paths.get(path).getFileName().toString());
+        known.put(path, exists);
+        //we know it exists but not its size yet, that gets stat'ed when someone asks.
+        if(!exists)
+          attributes.put(path, FileInfo.missing(now));
+      }
+    }
+
+    List<String> existing = new ArrayList<>();
+    for(String path : paths)
+      if(known.get(path))
+        existing.add(path);
+    return existing;
+  }
+
+  /** Drops everything in the attribute cache. */
+  public static void clearAttributeCache() { attributes.clear(); }
+
+  private static FileInfo stat(Path path, long now)
+  {
+    try
+    {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      MediaType type = attrs.isDirectory() ? MediaType.OTHER : MediaType.fromMimeType(mimeType(path.getFileName().toString()));
+      return new FileInfo(true, attrs.size(), attrs.lastModifiedTime().toMillis(), type, now);
+    }
+    catch(NoSuchFileException e)
+    {
+      return FileInfo.missing(now);
+    }
+    catch(IOException e)
+    {
+      log("failed to stat " + path + " " + e.getMessage());
+      return FileInfo.missing(now);
+    }
+  }
+
+  /**
+   * Cached attributes of a single file.
+   */
+  public static class FileInfo
+  {
+    private final boolean exists;
+    private final long size;
+    private final long mtime;
+    private final MediaType type;
+    private final long checkedAt;
+
+    FileInfo(boolean exists, long size, long mtime, MediaType type, long checkedAt)
+    {
+      this.exists = exists;
+      this.size = size;
+      this.mtime = mtime;
+      this.type = type;
+      this.checkedAt = checkedAt;
+    }
+
+    static FileInfo missing(long checkedAt) { return new FileInfo(false, -1L, 0L, MediaType.OTHER, checkedAt); }
+
+    public boolean exists() { return exists; }
+    //-1 if the file doesn't exist.
+    public long size() { return size; }
+    public long mtime() { return mtime; }
+    public MediaType type() { return type; }
+  }
+
   /** returns true if directory is valid.
    * this method will attempt to create the directory if
    * it doesn't exist.
@@ -39,6 +224,74 @@ public class LocalService
     return true;
   }
 
+  /** Returns the media manifest shared by the sync code and the playlists. */
+  public static MediaManifest manifest() { return manifest; }
+
+  /** Returns the live media index (subscribe to it to hear about new media). */
+  public static MediaIndex index() { return index; }
+
+  /** Returns the media probe (ask it how long a video is or how big). */
+  public static MediaProbe probe() { return probe; }
+
+  /** Returns the media validator (only videos it passed go in a playlist). */
+  public static MediaValidator validator() { return validator; }
+
+  /**
+   * Notes that a media file just started showing.
+   *
+   * @param mrl absolute path of the media.
+   */
+  public static void markPlayed(String mrl)
+  {
+    manifest.markPlayed(mrl);
+  }
+
+  /**
+   * Returns the day of week folder a path is in ("friday") or null.
+   *
+   * day folders are how we schedule media, "videos/friday/" only plays on fridays.
+   */
+  public static String dayFolder(String path)
+  {
+    String lower = path.toLowerCase().replace(File.separatorChar, '/');
+    for(DayOfWeek day : DayOfWeek.values())
+    {
+      String name = day.name().toLowerCase();
+      if(lower.contains("/" + name + "/") || lower.startsWith(name + "/"))
+        return name;
+    }
+    return null;
+  }
+
+  /** Returns today's day folder name ("friday"). */
+  public static String today()
+  {
+    return LocalDateTime.now().getDayOfWeek().name().toLowerCase();
+  }
+
+  /**
+   * Returns true if the media can show today.
+   *
+   * anything outside a day folder shows every day.
+   */
+  public static boolean isScheduledToday(String path)
+  {
+    String day = dayFolder(path);
+    return day == null || day.equals(today());
+  }
+
+  /**
+   * Returns true if we have any local media at all.
+   *
+   * on the very first run (no manifest yet) this walks the download path once.
+   */
+  public static boolean hasMedia()
+  {
+    if(manifest.isEmpty())
+      reconcile();
+    return !manifest.isEmpty();
+  }
+
   /**
    * Returns set of paths for files in app folder to be used as MRLS in vlc.
    *
@@ -46,6 +299,10 @@ public class LocalService
    *
    * if no parameters are passed it will get all files recursivley starting from root.
    *
+   * the paths come from the live media index, so this doesn't touch the disk.
+   * until the index is started we answer from the media manifest
+   * (files copied into the folders by hand show up after the next reconcile()).
+   *
    * @param nestedFolders a nested path you wanna narrow the search too. i.e "videos/" will give you all files in videos folder.
    * @param recursive get all the files even from nested directories (DEFAULT IS TRUE).
    * @return set of absolute paths for each file in app folder.
@@ -53,24 +310,145 @@ public class LocalService
   public static Set<String> getLocalMRLS() { return getLocalMRLS("", true); }
   public static Set<String> getLocalMRLS(String nestedFolders, boolean recursive)
   {
-    final String searchPath = Config.getProperty("downloadPath") + nestedFolders;
-    Queue<File> folders = new LinkedList<>(List.of(new File(searchPath)));
-    Set<String> mrls = new HashSet<>();
-    while(!folders.isEmpty())
+    final String searchPath = new File(Config.getProperty("downloadPath") + nestedFolders).getAbsolutePath();
+    if(index.isReady())
+      return index.paths(searchPath, recursive);
+    if(manifest.isEmpty())
+      reconcile();
+    return new HashSet<>(manifest.paths(searchPath, recursive));
+  }
+
+  /**
+   * Brings the manifest in line with what is actually on disk.
+   *
+   * scans the whole download path: unknown media is added, files whose
+   * size or mtime changed are marked for re-hashing and records for files
+   * that are gone are dropped. the sync job calls this in the background.
+   *
+   * @return number of records that changed.
+   */
+  public static synchronized int reconcile()
+  {
+    long start = System.nanoTime();
+    int changed = 0;
+    Set<String> seen = new HashSet<>();
+    for(LibraryScanner.ScannedFile file : scanner.scan(Config.getProperty("downloadPath"), true))
     {
-      File dir = folders.poll();
-      if(!dir.exists())
-        continue;
-      File[] files = dir.listFiles();
-      for(File file : files)
+      String path = file.path();
+      seen.add(path);
+      MediaManifest.Record record = manifest.get(path);
+      if(record == null)
       {
-        if(file.isDirectory() && recursive)
-          folders.add(file);
-
-        if(!file.isDirectory())
-          mrls.add(file.getAbsolutePath());
+        manifest.put(new MediaManifest.Record("", path, file.size(), file.mtime(), "", mimeType(path), -1L, 0L));
+        changed++;
+      }
+      else if(record.size() != file.size() || record.mtime() != file.mtime())
+      {
+        manifest.put(new MediaManifest.Record(record.driveId(), path, file.size(), file.mtime(), "", record.mimeType(), -1L, record.lastPlayed()));
+        changed++;
+      }
+    }
+    for(MediaManifest.Record record : new ArrayList<>(manifest.records()))
+    {
+      if(!seen.contains(record.path()))
+      {
+        manifest.remove(record.path());
+        changed++;
       }
     }
-    return mrls;
+    manifest.save();
+    if(changed > 0)
+      log(String.format("reconciled manifest, %d changes in %.1fms", changed, (System.nanoTime() - start) / 1_000_000d));
+    return changed;
+  }
+
+  /**
+   * Returns the mime type for a file name ("" if we can't tell).
+   */
+  public static String mimeType(String name)
+  {
+    //our own list goes first, the jdk's table is old (it calls .avi
+    //"application/x-troff-msvideo" and doesn't know mkv or ts).
+    String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    switch(ext)
+    {
+      case "mp4":
+      case "m4v":
+        return "video/mp4";
+      case "mov":
+        return "video/quicktime";
+      case "mkv":
+        return "video/x-matroska";
+      case "webm":
+        return "video/webm";
+      case "avi":
+        return "video/x-msvideo";
+      case "ts":
+        return "video/mp2t";
+      case "flv":
+        return "video/x-flv";
+      case "wmv":
+        return "video/x-ms-wmv";
+      case "ogv":
+        return "video/ogg";
+      case "3gp":
+        return "video/3gpp";
+      case "webp":
+        return "image/webp";
+      case "bmp":
+        return "image/bmp";
+      default:
+        String type = URLConnection.guessContentTypeFromName(name);
+        return type != null ? type : "";
+    }
+  }
+
+  /**
+   * Hashes a whole file.
+   *
+   * @return lowercase hex md5 of the file's content.
+   */
+  public static String md5(File file) throws IOException
+  {
+    MessageDigest digest = newDigest();
+    update(digest, file);
+    return toHex(digest.digest());
+  }
+
+  static MessageDigest newDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch(NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException("md5 not available", e);
+    }
+  }
+
+  /** Feeds the whole content of a file to the digest. */
+  static void update(MessageDigest digest, File file) throws IOException
+  {
+    try(InputStream in = Files.newInputStream(file.toPath()))
+    {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while((read = in.read(buffer)) != -1)
+        digest.update(buffer, 0, read);
+    }
+  }
+
+  static String toHex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for(byte b : bytes)
+      sb.append(String.format("%02x", b));
+    return sb.toString();
+  }
+
+  private static void log(String message)
+  {
+    System.out.println("[LocalService] " + message);
   }
 }
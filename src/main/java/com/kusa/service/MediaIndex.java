@@ -0,0 +1,326 @@
+package com.kusa.service;
+
+import com.kusa.util.MediaType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class representing a live in memory index of the media folders.
+ *
+ * the download path is walked once when the index starts, after that
+ * a WatchService keeps it up to date. lookups by folder never touch
+ * the disk, which matters on slow sd cards.
+ *
+ * subscribers are told about every file that shows up, changes or goes
+ * away. events are delivered on the watcher thread, so listeners should
+ * be quick (set a flag, queue some work).
+ *
+ * only real media is indexed (see LibraryScanner.classify), so partial
+ * downloads and junk files never show up. a finished download shows up
+ * when it's renamed to its real name.
+ */
+public class MediaIndex
+{
+  public enum Kind { ADDED, MODIFIED, REMOVED }
+
+  /** Gets told about changes in the media folders. */
+  public interface Listener
+  {
+    void mediaChanged(Kind kind, String path);
+  }
+
+  private final Path root;
+  //absolute dir path -> absolute paths of the files directly inside it.
+  private final Map<String, Set<String>> filesByDir;
+  private final Map<WatchKey, Path> watchedDirs;
+  private final List<Listener> listeners;
+  private WatchService watcher;
+  private Thread thread;
+  private volatile boolean ready;
+
+  public MediaIndex(String rootPath)
+  {
+    this.root = Paths.get(rootPath).toAbsolutePath().normalize();
+    this.filesByDir = new ConcurrentHashMap<>();
+    this.watchedDirs = new ConcurrentHashMap<>();
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.ready = false;
+  }
+
+  /**
+   * Seeds the index and starts watching the media folders.
+   *
+   * does nothing if it's already running.
+   *
+   * @return true if the index is live.
+   */
+  public synchronized boolean start()
+  {
+    if(thread != null)
+      return ready;
+
+    long start = System.nanoTime();
+    try
+    {
+      Files.createDirectories(root);
+      watcher = FileSystems.getDefault().newWatchService();
+      addTree(root, false);
+    }
+    catch(IOException e)
+    {
+      log("failed to start the media index, falling back to the manifest. (see stack trace)");
+      e.printStackTrace();
+      return false;
+    }
+
+    thread = new Thread(this::watch, "media-index");
+    thread.setDaemon(true);
+    thread.start();
+    ready = true;
+    log(String.format("indexed %d files in %d folders in %.1fms", fileCount(), filesByDir.size(), (System.nanoTime() - start) / 1_000_000d));
+    return true;
+  }
+
+  public synchronized void stop()
+  {
+    ready = false;
+    try
+    {
+      if(watcher != null)
+        watcher.close();
+    }
+    catch(IOException e)
+    {
+      log("failed to close watch service " + e.getMessage());
+    }
+  }
+
+  /** Returns true once the index is seeded and being watched. */
+  public boolean isReady() { return ready; }
+
+  public void subscribe(Listener listener) { listeners.add(listener); }
+  public void unsubscribe(Listener listener) { listeners.remove(listener); }
+
+  /**
+   * Returns the absolute paths of the media inside a directory.
+   *
+   * @param dir absolute directory path.
+   * @param recursive include media from nested directories.
+   */
+  public Set<String> paths(String dir, boolean recursive)
+  {
+    final String key = Paths.get(dir).toAbsolutePath().normalize().toString();
+    Set<String> found = new HashSet<>();
+    if(!recursive)
+    {
+      Set<String> files = filesByDir.get(key);
+      if(files != null)
+        found.addAll(files);
+      return found;
+    }
+
+    final String prefix = key + File.separator;
+    for(Map.Entry<String, Set<String>> entry : filesByDir.entrySet())
+      if(entry.getKey().equals(key) || entry.getKey().startsWith(prefix))
+        found.addAll(entry.getValue());
+    return found;
+  }
+
+  /** Returns true if the file is in the index. */
+  public boolean contains(String path)
+  {
+    Path p = Paths.get(path).toAbsolutePath().normalize();
+    Set<String> files = filesByDir.get(p.getParent().toString());
+    return files != null && files.contains(p.toString());
+  }
+
+  public int fileCount()
+  {
+    int count = 0;
+    for(Set<String> files : filesByDir.values())
+      count += files.size();
+    return count;
+  }
+
+  /**
+   * Registers a directory (and everything below it) and indexes its files.
+   *
+   * @param notify tell the listeners about the files (false while seeding).
+   */
+  private void addTree(Path dir, boolean notify) throws IOException
+  {
+    List<Path> dirs = new ArrayList<>(List.of(dir));
+    for(int i = 0; i < dirs.size(); i++)
+    {
+      Path current = dirs.get(i);
+      WatchKey key = current.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      watchedDirs.put(key, current);
+      filesByDir.putIfAbsent(current.toString(), ConcurrentHashMap.newKeySet());
+
+      try(DirectoryStream<Path> entries = Files.newDirectoryStream(current))
+      {
+        for(Path entry : entries)
+        {
+          if(Files.isDirectory(entry))
+            dirs.add(entry);
+          else if(addFile(entry) && notify)
+            fire(Kind.ADDED, entry.toString());
+        }
+      }
+    }
+  }
+
+  private boolean addFile(Path file)
+  {
+    if(LibraryScanner.classify(file) == MediaType.OTHER)
+      return false;
+    Set<String> files = filesByDir.computeIfAbsent(file.getParent().toString(), k -> ConcurrentHashMap.newKeySet());
+    return files.add(file.toString());
+  }
+
+  /** Drops a file, or a whole directory tree if the path was a directory. */
+  private void removePath(Path path)
+  {
+    Set<String> files = filesByDir.get(path.getParent().toString());
+    if(files != null && files.remove(path.toString()))
+    {
+      fire(Kind.REMOVED, path.toString());
+      return;
+    }
+
+    final String key = path.toString();
+    final String prefix = key + File.separator;
+    for(String dir : new ArrayList<>(filesByDir.keySet()))
+    {
+      if(!dir.equals(key) && !dir.startsWith(prefix))
+        continue;
+      Set<String> removed = filesByDir.remove(dir);
+      if(removed != null)
+        for(String file : removed)
+          fire(Kind.REMOVED, file);
+    }
+    watchedDirs.values().removeIf(dir -> dir.toString().equals(key) || dir.toString().startsWith(prefix));
+  }
+
+  /** Throws away everything and walks the folders again (after an overflow). */
+  private void reseed()
+  {
+    log("watch events overflowed, re-indexing.");
+    Set<String> before = paths(root.toString(), true);
+    for(WatchKey key : watchedDirs.keySet())
+      key.cancel();
+    watchedDirs.clear();
+    filesByDir.clear();
+    try
+    {
+      addTree(root, false);
+    }
+    catch(IOException e)
+    {
+      log("failed to re-index " + e.getMessage());
+    }
+    Set<String> after = paths(root.toString(), true);
+    for(String path : before)
+      if(!after.contains(path))
+        fire(Kind.REMOVED, path);
+    for(String path : after)
+      if(!before.contains(path))
+        fire(Kind.ADDED, path);
+  }
+
+  private void watch()
+  {
+    while(ready)
+    {
+      WatchKey key;
+      try
+      {
+        key = watcher.take();
+      }
+      catch(InterruptedException | ClosedWatchServiceException e)
+      {
+        break;
+      }
+
+      Path dir = watchedDirs.get(key);
+      for(WatchEvent<?> event : key.pollEvents())
+      {
+        if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+        {
+          reseed();
+          break;
+        }
+        if(dir == null)
+          continue;
+
+        Path path = dir.resolve((Path) event.context());
+        try
+        {
+          if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+          {
+            if(Files.isDirectory(path))
+              addTree(path, true);
+            else if(addFile(path))
+              fire(Kind.ADDED, path.toString());
+          }
+          else if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+            removePath(path);
+          else if(event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && !Files.isDirectory(path))
+          {
+            if(addFile(path))
+              fire(Kind.ADDED, path.toString());
+            else if(contains(path.toString()))
+              fire(Kind.MODIFIED, path.toString());
+          }
+        }
+        catch(IOException e)
+        {
+          log("failed to index " + path + " " + e.getMessage());
+        }
+      }
+
+      if(!key.reset())
+        watchedDirs.remove(key);
+    }
+    log("stopped watching " + root);
+  }
+
+  private void fire(Kind kind, String path)
+  {
+    for(Listener listener : listeners)
+    {
+      try
+      {
+        listener.mediaChanged(kind, path);
+      }
+      catch(Exception e)
+      {
+        log("listener failed on " + kind + " " + path + " (see stack trace)");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[MediaIndex] " + message);
+  }
+}
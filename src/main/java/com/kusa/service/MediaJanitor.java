@@ -0,0 +1,266 @@
+package com.kusa.service;
+
+import com.kusa.Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps the media folder tidy.
+ *
+ * mirroring ('mirrorMode' property):
+ *  - off: files removed from drive stay on disk (default, old behavior).
+ *  - delete: files removed from drive are deleted.
+ *  - quarantine: files removed from drive are moved to the quarantine folder.
+ *
+ * disk quota ('diskQuotaMB' property, 0 is no quota):
+ * when the media folder goes over budget the least recently played
+ * media is evicted. media scheduled for today is never evicted, so in
+ * practice only other days' folders are candidates. evicted files are
+ * remembered so the sync doesn't download them again until their day.
+ */
+public class MediaJanitor
+{
+  public enum MirrorMode { OFF, DELETE, QUARANTINE }
+
+  private final MirrorMode mirrorMode;
+  private final long quotaBytes;
+  private final String quarantinePath;
+  private final Path evictedFile;
+  private final Set<String> evicted;
+
+  private final AtomicLong mirroredFiles;
+  private final AtomicLong evictedFiles;
+  private final AtomicLong evictedBytes;
+
+  public MediaJanitor()
+  {
+    this(parseMirrorMode(Config.getProperty("mirrorMode", "off")),
+         Long.parseLong(Config.getProperty("diskQuotaMB", "0")) * 1024L * 1024L,
+         Config.getProperty("quarantinePath", Config.getAppPath() + "quarantine/"),
+         Config.getAppPath() + "evicted");
+  }
+
+  public MediaJanitor(MirrorMode mirrorMode, long quotaBytes, String quarantinePath, String evictedPath)
+  {
+    this.mirrorMode = mirrorMode;
+    this.quotaBytes = quotaBytes;
+    this.quarantinePath = quarantinePath;
+    this.evictedFile = Paths.get(evictedPath);
+    this.evicted = ConcurrentHashMap.newKeySet();
+    this.mirroredFiles = new AtomicLong();
+    this.evictedFiles = new AtomicLong();
+    this.evictedBytes = new AtomicLong();
+
+    try
+    {
+      if(Files.exists(evictedFile))
+        evicted.addAll(Files.readAllLines(evictedFile, StandardCharsets.UTF_8));
+    }
+    catch(IOException e)
+    {
+      log("failed to read evicted list " + evictedFile + " " + e.getMessage());
+    }
+    log(String.format("mirror mode %s, quota %s", mirrorMode, quotaBytes > 0 ? (quotaBytes / 1024 / 1024) + "MB" : "none"));
+  }
+
+  public MirrorMode mirrorMode() { return mirrorMode; }
+
+  /**
+   * Reads a mirror mode in any case ("Delete", " quarantine").
+   *
+   * a typo in the properties shouldn't take the sync down, anything we
+   * don't know is logged and mirroring stays off.
+   */
+  static MirrorMode parseMirrorMode(String value)
+  {
+    try
+    {
+      return MirrorMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+    catch(IllegalArgumentException | NullPointerException e)
+    {
+      System.out.println("[MediaJanitor] unknown mirrorMode '" + value + "' (off, delete or quarantine), using off.");
+      return MirrorMode.OFF;
+    }
+  }
+
+  /**
+   * Removes (or quarantines) local files that are no longer in drive.
+   *
+   * does nothing when mirroring is off.
+   *
+   * @param stalePaths absolute local paths of files drive doesn't have anymore.
+   * @return number of files removed.
+   */
+  public int mirror(Collection<String> stalePaths)
+  {
+    if(mirrorMode == MirrorMode.OFF || stalePaths.isEmpty())
+      return 0;
+
+    int removed = 0;
+    for(String path : stalePaths)
+    {
+      if(removeMedia(path, mirrorMode == MirrorMode.QUARANTINE))
+      {
+        removed++;
+        log(String.format("%s %s (not in drive anymore)", mirrorMode == MirrorMode.QUARANTINE ? "quarantined" : "deleted", path));
+      }
+    }
+    mirroredFiles.addAndGet(removed);
+    LocalService.manifest().save();
+    return removed;
+  }
+
+  /**
+   * Evicts least recently played media until we are under the quota.
+   *
+   * hard linked copies (same md5) share their bytes, evicting one of
+   * them frees nothing until the last path with that md5 is gone, the
+   * same way usedBytes counts them.
+   *
+   * @return number of files evicted.
+   */
+  public int enforceQuota()
+  {
+    if(quotaBytes <= 0)
+      return 0;
+
+    MediaManifest manifest = LocalService.manifest();
+    long used = usedBytes(manifest.records());
+    if(used <= quotaBytes)
+      return 0;
+
+    List<MediaManifest.Record> candidates = new ArrayList<>();
+    for(MediaManifest.Record record : manifest.records())
+      if(!LocalService.isScheduledToday(record.path()))
+        candidates.add(record);
+    candidates.sort(Comparator.comparingLong(MediaManifest.Record::lastPlayed));
+
+    Map<String, Integer> links = new HashMap<>();
+    for(MediaManifest.Record record : manifest.records())
+      if(!record.md5().isEmpty())
+        links.merge(record.md5(), 1, Integer::sum);
+
+    int count = 0;
+    long freed = 0;
+    for(MediaManifest.Record record : candidates)
+    {
+      if(used - freed <= quotaBytes)
+        break;
+      if(removeMedia(record.path(), false))
+      {
+        evicted.add(record.path());
+        count++;
+        if(record.md5().isEmpty() || links.merge(record.md5(), -1, Integer::sum) == 0)
+          freed += record.size();
+        log(String.format("evicted %s (%d bytes, last played %d)", record.path(), record.size(), record.lastPlayed()));
+      }
+    }
+
+    evictedFiles.addAndGet(count);
+    evictedBytes.addAndGet(freed);
+    saveEvicted();
+    manifest.save();
+    if(used - freed > quotaBytes)
+      log(String.format("WARNING still %d bytes over quota, nothing else can be evicted today.", used - freed - quotaBytes));
+    else
+      log(String.format("evicted %d files (%d bytes), media folder is now %d/%d bytes.", count, freed, used - freed, quotaBytes));
+    return count;
+  }
+
+  /**
+   * Returns true if the sync should not download this file right now.
+   *
+   * evicted files come back once they are scheduled for today.
+   *
+   * @param path absolute local path the file would be downloaded to.
+   */
+  public boolean shouldSkip(String path)
+  {
+    if(!evicted.contains(path))
+      return false;
+    if(!LocalService.isScheduledToday(path))
+      return true;
+
+    evicted.remove(path);
+    saveEvicted();
+    return false;
+  }
+
+  /**
+   * Returns the bytes used by the media in the manifest.
+   *
+   * hard linked copies (same md5) only count once.
+   */
+  private static long usedBytes(Collection<MediaManifest.Record> records)
+  {
+    long used = 0;
+    Set<String> counted = new HashSet<>();
+    for(MediaManifest.Record record : records)
+      if(record.md5().isEmpty() || counted.add(record.md5()))
+        used += record.size();
+    return used;
+  }
+
+  private boolean removeMedia(String path, boolean quarantine)
+  {
+    try
+    {
+      Path source = Paths.get(path);
+      if(quarantine && Files.exists(source))
+      {
+        Path root = Paths.get(Config.getProperty("downloadPath")).toAbsolutePath();
+        Path target = Paths.get(quarantinePath).resolve(root.relativize(source));
+        Files.createDirectories(target.getParent());
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      else
+        Files.deleteIfExists(source);
+      LocalService.manifest().remove(path);
+      return true;
+    }
+    catch(Exception e)
+    {
+      log("failed to remove " + path + " " + e.getMessage());
+      return false;
+    }
+  }
+
+  private void saveEvicted()
+  {
+    try
+    {
+      Files.write(evictedFile, new ArrayList<>(evicted), StandardCharsets.UTF_8);
+    }
+    catch(IOException e)
+    {
+      log("failed to save evicted list " + evictedFile + " " + e.getMessage());
+    }
+  }
+
+  //metrics.
+  public long mirroredFiles() { return mirroredFiles.get(); }
+  public long evictedFiles() { return evictedFiles.get(); }
+  public long evictedBytes() { return evictedBytes.get(); }
+
+  private void log(String message)
+  {
+    System.out.println("[MediaJanitor] " + message);
+  }
+}
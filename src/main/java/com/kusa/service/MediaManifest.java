@@ -0,0 +1,353 @@
+package com.kusa.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class representing the on disk manifest of our local media.
+ *
+ * one record per asset: drive id, local path, size, mtime, md5,
+ * mime type, probed duration and when it was last played. the sync
+ * code writes it after every sync and LocalService reads it at startup,
+ * so playlists can be built without touching the network or walking
+ * the media folders.
+ *
+ * binary layout (DataOutputStream):
+ *  - int MAGIC, int VERSION, int record count.
+ *  - per record: utf driveId, utf path, long size, long mtime,
+ *    utf md5, utf mimeType, long durationMs, long lastPlayed.
+ *    (version 1 manifests have no lastPlayed.)
+ *
+ * saving writes a temp file, syncs it and renames it over the old
+ * manifest, so a reader only ever sees a complete manifest.
+ */
+public class MediaManifest
+{
+  private static final int MAGIC = 0x4A4E5A4D; //"JNZM"
+  private static final int VERSION = 2;
+
+  private final File file;
+  private final Map<String, Record> records;
+  private final Map<String, String> pathsByMd5;
+  private volatile boolean dirty;
+
+  public MediaManifest(String path)
+  {
+    this.file = new File(path);
+    this.records = new ConcurrentHashMap<>();
+    this.pathsByMd5 = new ConcurrentHashMap<>();
+    this.dirty = false;
+    load();
+  }
+
+  private void load()
+  {
+    if(!file.exists())
+      return;
+
+    long start = System.nanoTime();
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+    {
+      int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+      if(version != 1 && version != VERSION)
+      {
+        log("unknown manifest format " + file + " (it will be rebuilt).");
+        return;
+      }
+      int count = in.readInt();
+      for(int i = 0; i < count; i++)
+      {
+        Record record = new Record(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readLong(),
+            (version >= 2) ? in.readLong() : 0L);
+        index(record);
+      }
+      log(String.format("loaded %d records in %.1fms", count, (System.nanoTime() - start) / 1_000_000d));
+    }
+    catch(Exception e)
+    {
+      log("failed to read manifest " + file + " (it will be rebuilt). " + e.getMessage());
+      records.clear();
+      pathsByMd5.clear();
+    }
+  }
+
+  /**
+   * Writes the manifest to disk if anything changed since the last save.
+   *
+   * @return true if the manifest on disk is up to date.
+   */
+  public synchronized boolean save()
+  {
+    if(!dirty)
+      return true;
+    dirty = false;
+
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(file.getName() + ".tmp");
+    List<Record> snapshot = new ArrayList<>(records.values());
+    try
+    {
+      try(FileOutputStream fos = new FileOutputStream(temp.toFile());
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos)))
+      {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(snapshot.size());
+        for(Record r : snapshot)
+        {
+          out.writeUTF(r.driveId);
+          out.writeUTF(r.path);
+          out.writeLong(r.size);
+          out.writeLong(r.mtime);
+          out.writeUTF(r.md5);
+          out.writeUTF(r.mimeType);
+          out.writeLong(r.durationMs);
+          out.writeLong(r.lastPlayed);
+        }
+        out.flush();
+        fos.getFD().sync();
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    }
+    catch(IOException e)
+    {
+      dirty = true;
+      log("failed to save manifest (see stack trace)");
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  public boolean isEmpty() { return records.isEmpty(); }
+  public int size() { return records.size(); }
+
+  /** Returns the record for an absolute local path or null. */
+  public Record get(String path) { return records.get(path); }
+
+  /** Returns every record (UNMODIFIABLE view). */
+  public Collection<Record> records() { return Collections.unmodifiableCollection(records.values()); }
+
+  /**
+   * Returns the absolute paths of the records inside a directory.
+   *
+   * @param dir absolute directory path.
+   * @param recursive include records from nested directories.
+   */
+  public List<String> paths(String dir, boolean recursive)
+  {
+    final String prefix = dir.endsWith(File.separator) ? dir : dir + File.separator;
+    List<String> paths = new ArrayList<>();
+    for(String path : records.keySet())
+    {
+      if(!path.startsWith(prefix))
+        continue;
+      if(recursive || path.indexOf(File.separatorChar, prefix.length()) < 0)
+        paths.add(path);
+    }
+    return paths;
+  }
+
+  public void put(Record record)
+  {
+    Record old = records.get(record.path);
+    if(record.equals(old))
+      return;
+    if(old != null)
+      pathsByMd5.remove(old.md5, old.path);
+    index(record);
+    dirty = true;
+  }
+
+  public void remove(String path)
+  {
+    Record old = records.remove(path);
+    if(old != null)
+    {
+      pathsByMd5.remove(old.md5, old.path);
+      dirty = true;
+    }
+  }
+
+  private void index(Record record)
+  {
+    records.put(record.path, record);
+    if(!record.md5.isEmpty())
+      pathsByMd5.put(record.md5, record.path);
+  }
+
+  /**
+   * Records a file the sync code just put on disk.
+   *
+   * the probed duration is kept if the content didn't change.
+   */
+  public void record(File local, String driveId, String md5, String mimeType)
+  {
+    String path = local.getAbsolutePath();
+    Record old = records.get(path);
+    long duration = (old != null && old.md5.equalsIgnoreCase(md5)) ? old.durationMs : -1L;
+    long lastPlayed = (old != null) ? old.lastPlayed : 0L;
+    put(new Record(driveId, path, local.length(), local.lastModified(), md5.toLowerCase(), mimeType, duration, lastPlayed));
+  }
+
+  /**
+   * Notes that a file just started playing (used to evict least recently played media).
+   */
+  public void markPlayed(String path)
+  {
+    Record old = records.get(path);
+    if(old != null)
+      put(old.withLastPlayed(System.currentTimeMillis()));
+  }
+
+  /** Returns the paths of every record downloaded from this drive file. */
+  public List<String> pathsForDriveId(String driveId)
+  {
+    List<String> paths = new ArrayList<>();
+    for(Record record : records.values())
+      if(record.driveId.equals(driveId))
+        paths.add(record.path);
+    return paths;
+  }
+
+  /**
+   * Returns the md5 of a local file, hashing it only if we have to.
+   *
+   * the record's md5 is only trusted while the file still has the
+   * size and mtime it had when we hashed it.
+   *
+   * @return lowercase hex md5 or null if the file can't be read.
+   */
+  public String md5(File local)
+  {
+    if(!local.exists())
+      return null;
+
+    Record record = records.get(local.getAbsolutePath());
+    if(record != null && !record.md5.isEmpty() && record.matches(local))
+      return record.md5;
+
+    try
+    {
+      String md5 = LocalService.md5(local);
+      if(record != null)
+        put(new Record(record.driveId, record.path, local.length(), local.lastModified(), md5, record.mimeType, record.durationMs, record.lastPlayed));
+      else
+        put(new Record("", local.getAbsolutePath(), local.length(), local.lastModified(), md5, LocalService.mimeType(local.getName()), -1L, 0L));
+      return md5;
+    }
+    catch(IOException e)
+    {
+      log("failed to hash " + local + " " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Returns a local file that has exactly this content, if we have one.
+   *
+   * @param md5 content checksum.
+   * @return file with the same content (still unchanged on disk) or null.
+   */
+  public File findByMd5(String md5)
+  {
+    if(md5 == null)
+      return null;
+    String path = pathsByMd5.get(md5.toLowerCase());
+    if(path == null)
+      return null;
+    File local = new File(path);
+    Record record = records.get(path);
+    return (record != null && record.matches(local)) ? local : null;
+  }
+
+  /**
+   * A single asset in the manifest.
+   *
+   * empty strings mean unknown (driveId of a file we didn't download, md5 not hashed yet).
+   * durationMs is -1 until the media has been probed.
+   * lastPlayed is epoch millis, 0 if it never played.
+   */
+  public static class Record
+  {
+    private final String driveId;
+    private final String path;
+    private final long size;
+    private final long mtime;
+    private final String md5;
+    private final String mimeType;
+    private final long durationMs;
+    private final long lastPlayed;
+
+    public Record(String driveId, String path, long size, long mtime, String md5, String mimeType, long durationMs, long lastPlayed)
+    {
+      this.driveId = driveId == null ? "" : driveId;
+      this.path = path;
+      this.size = size;
+      this.mtime = mtime;
+      this.md5 = md5 == null ? "" : md5;
+      this.mimeType = mimeType == null ? "" : mimeType;
+      this.durationMs = durationMs;
+      this.lastPlayed = lastPlayed;
+    }
+
+    public String driveId() { return driveId; }
+    public String path() { return path; }
+    public long size() { return size; }
+    public long mtime() { return mtime; }
+    public String md5() { return md5; }
+    public String mimeType() { return mimeType; }
+    public long durationMs() { return durationMs; }
+    public long lastPlayed() { return lastPlayed; }
+
+    /** Returns a copy of this record with a probed duration. */
+    public Record withDuration(long durationMs)
+    {
+      return new Record(driveId, path, size, mtime, md5, mimeType, durationMs, lastPlayed);
+    }
+
+    /** Returns a copy of this record played at the given time. */
+    public Record withLastPlayed(long lastPlayed)
+    {
+      return new Record(driveId, path, size, mtime, md5, mimeType, durationMs, lastPlayed);
+    }
+
+    /** Returns true if the file on disk still looks like this record. */
+    public boolean matches(File local)
+    {
+      return local.length() == size && local.lastModified() == mtime && local.exists();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if(!(o instanceof Record))
+        return false;
+      Record r = (Record) o;
+      return size == r.size && mtime == r.mtime && durationMs == r.durationMs && lastPlayed == r.lastPlayed
+        && driveId.equals(r.driveId) && path.equals(r.path) && md5.equals(r.md5) && mimeType.equals(r.mimeType);
+    }
+
+    @Override
+    public int hashCode() { return path.hashCode(); }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[MediaManifest] " + message);
+  }
+}
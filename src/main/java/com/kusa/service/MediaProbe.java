@@ -0,0 +1,409 @@
+package com.kusa.service;
+
+import com.kusa.Config;
+import com.kusa.util.MediaType;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.co.caprica.vlcj.factory.MediaPlayerFactory;
+import uk.co.caprica.vlcj.media.AudioTrackInfo;
+import uk.co.caprica.vlcj.media.Media;
+import uk.co.caprica.vlcj.media.MediaEventAdapter;
+import uk.co.caprica.vlcj.media.MediaEventListener;
+import uk.co.caprica.vlcj.media.MediaParsedStatus;
+import uk.co.caprica.vlcj.media.ParseFlag;
+import uk.co.caprica.vlcj.media.VideoTrackInfo;
+
+/**
+ * Class that finds out what is inside our videos (duration, resolution, codecs).
+ *
+ * videos are parsed with vlc (no playback) on a single background
+ * thread, never on the playback path. results are cached on disk keyed
+ * by path + size + mtime, so each file is only parsed once. probed
+ * durations are also written to the media manifest.
+ *
+ * new videos are probed as soon as the media index sees them.
+ *
+ * properties:
+ *  - 'probeCachePath' where the cache lives (default $HOME/.jinzo/probe.cache).
+ *  - 'probeTimeoutSeconds' how long vlc may take to parse one file (default 10).
+ *  - 'maxVideoHeight' videos taller than this get a warning (default 1080).
+ *
+ * file layout (plain text, one video per line):
+ *  path, size, mtime, status, durationMs, width, height, videoCodec, audioCodec, bitrate
+ *  separated by tabs.
+ */
+public class MediaProbe
+{
+  public enum Status { OK, FAILED, TIMEOUT }
+
+  private static final int PROBE_TIMEOUT_MILLIS = Integer.parseInt(Config.getProperty("probeTimeoutSeconds", "10")) * 1000;
+  private static final int MAX_VIDEO_HEIGHT = Integer.parseInt(Config.getProperty("maxVideoHeight", "1080"));
+
+  private final File file;
+  private final Map<String, Info> cache;
+  private final Set<String> queued;
+  private final AtomicInteger probed;
+  private ExecutorService worker;
+  private MediaPlayerFactory factory;
+  private volatile boolean dirty;
+
+  public MediaProbe() { this(Config.getProperty("probeCachePath", Config.getAppPath() + "probe.cache")); }
+  public MediaProbe(String cachePath)
+  {
+    this.file = new File(cachePath);
+    this.cache = new ConcurrentHashMap<>();
+    this.queued = ConcurrentHashMap.newKeySet();
+    this.probed = new AtomicInteger();
+    this.dirty = false;
+    load();
+  }
+
+  /**
+   * Starts the probe thread and queues every video we don't know about yet.
+   */
+  public synchronized void start()
+  {
+    if(worker != null)
+      return;
+    worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "media-probe");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      return t;
+    });
+
+    LocalService.index().subscribe((kind, path) -> {
+      if(kind == MediaIndex.Kind.REMOVED)
+        cache.remove(path);
+      else
+        probe(path);
+    });
+    int count = 0;
+    for(String path : LocalService.getLocalMRLS())
+      if(probe(path))
+        count++;
+    log(String.format("%d cached, %d videos queued for probing.", cache.size(), count));
+  }
+
+  public synchronized void shutdown()
+  {
+    if(worker != null)
+      worker.shutdownNow();
+  }
+
+  /**
+   * Queues a video for probing if we don't have fresh info on it.
+   *
+   * @return true if it was queued.
+   */
+  public boolean probe(String path)
+  {
+    if(worker == null || LocalService.isPartial(new File(path).getName()))
+      return false;
+    if(MediaType.fromMimeType(LocalService.mimeType(path)) != MediaType.VIDEO)
+      return false;
+    if(get(path) != null || !queued.add(path))
+      return false;
+
+    worker.execute(() -> {
+      try
+      {
+        run(path);
+      }
+      finally
+      {
+        queued.remove(path);
+        if(queued.isEmpty())
+          save();
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Returns what we know about a video, or null if it hasn't been probed
+   * (or changed since). never blocks.
+   */
+  public Info get(String path)
+  {
+    Info info = cache.get(path);
+    if(info == null)
+      return null;
+    LocalService.FileInfo attrs = LocalService.fileInfo(path);
+    return (attrs.exists() && attrs.size() == info.size && attrs.mtime() == info.mtime) ? info : null;
+  }
+
+  /**
+   * Returns the duration of a video in millis or -1 if we don't know it (yet).
+   */
+  public long durationMs(String path)
+  {
+    Info info = get(path);
+    return (info != null && info.status == Status.OK) ? info.durationMs : -1L;
+  }
+
+  /**
+   * Returns how long a list of videos takes to play (unknown durations are skipped).
+   */
+  public long totalDurationMs(Collection<String> paths)
+  {
+    long total = 0;
+    for(String path : paths)
+      total += Math.max(0L, durationMs(path));
+    return total;
+  }
+
+  /** Returns the number of videos waiting to be probed. */
+  public int pending() { return queued.size(); }
+
+  /** Returns the number of videos probed since start. */
+  public int probedCount() { return probed.get(); }
+
+  private void run(String path)
+  {
+    File local = new File(path);
+    if(!local.exists())
+      return;
+
+    long size = local.length();
+    long mtime = local.lastModified();
+    long start = System.nanoTime();
+    Info info = parse(path, size, mtime);
+    cache.put(path, info);
+    dirty = true;
+    probed.incrementAndGet();
+
+    if(info.status == Status.OK)
+    {
+      MediaManifest.Record record = LocalService.manifest().get(path);
+      if(record != null && record.matches(local) && record.durationMs() != info.durationMs)
+        LocalService.manifest().put(record.withDuration(info.durationMs));
+      if(info.height > MAX_VIDEO_HEIGHT)
+        log(String.format("WARNING %s is %dx%d, taller than maxVideoHeight %d, it may not decode smoothly.", path, info.width, info.height, MAX_VIDEO_HEIGHT));
+    }
+    log(String.format("probed %s in %.1fms: %s", local.getName(), (System.nanoTime() - start) / 1_000_000d, info));
+  }
+
+  /**
+   * Parses a single video with vlc, waiting for the parse to finish.
+   */
+  private Info parse(String path, long size, long mtime)
+  {
+    if(factory == null)
+      factory = new MediaPlayerFactory("--quiet", "--no-video", "--no-audio");
+
+    Media media = factory.media().newMedia(path);
+    if(media == null)
+      return new Info(path, size, mtime, Status.FAILED, -1L, 0, 0, "", "", 0);
+
+    final CountDownLatch parsed = new CountDownLatch(1);
+    final MediaParsedStatus[] result = new MediaParsedStatus[1];
+    MediaEventListener listener = new MediaEventAdapter() {
+      @Override
+      public void mediaParsedChanged(Media m, MediaParsedStatus newStatus)
+      {
+        result[0] = newStatus;
+        parsed.countDown();
+      }
+    };
+
+    try
+    {
+      media.events().addMediaEventListener(listener);
+      if(!media.parsing().parse(PROBE_TIMEOUT_MILLIS, ParseFlag.PARSE_LOCAL))
+        return new Info(path, size, mtime, Status.FAILED, -1L, 0, 0, "", "", 0);
+      if(!parsed.await(PROBE_TIMEOUT_MILLIS + 1000L, TimeUnit.MILLISECONDS) || result[0] == MediaParsedStatus.TIMEOUT)
+        return new Info(path, size, mtime, Status.TIMEOUT, -1L, 0, 0, "", "", 0);
+      if(result[0] != MediaParsedStatus.DONE)
+        return new Info(path, size, mtime, Status.FAILED, -1L, 0, 0, "", "", 0);
+
+      long duration = media.info().duration();
+      int width = 0;
+      int height = 0;
+      String videoCodec = "";
+      String audioCodec = "";
+      int bitrate = 0;
+      List<VideoTrackInfo> videoTracks = media.info().videoTracks();
+      if(videoTracks != null && !videoTracks.isEmpty())
+      {
+        VideoTrackInfo track = videoTracks.get(0);
+        width = track.width();
+        height = track.height();
+        videoCodec = clean(track.codecName());
+        bitrate += track.bitRate();
+      }
+      List<AudioTrackInfo> audioTracks = media.info().audioTracks();
+      if(audioTracks != null && !audioTracks.isEmpty())
+      {
+        audioCodec = clean(audioTracks.get(0).codecName());
+        bitrate += audioTracks.get(0).bitRate();
+      }
+      //containers often don't say, the average is good enough for us.
+      if(bitrate <= 0 && duration > 0)
+        bitrate = (int) Math.min(Integer.MAX_VALUE, size * 8L * 1000L / duration);
+
+      return new Info(path, size, mtime, Status.OK, duration, width, height, videoCodec, audioCodec, bitrate);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return new Info(path, size, mtime, Status.TIMEOUT, -1L, 0, 0, "", "", 0);
+    }
+    catch(Exception e)
+    {
+      log("failed to probe " + path + " " + e.getMessage());
+      return new Info(path, size, mtime, Status.FAILED, -1L, 0, 0, "", "", 0);
+    }
+    finally
+    {
+      media.events().removeMediaEventListener(listener);
+      media.release();
+    }
+  }
+
+  private static String clean(String s)
+  {
+    return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').trim();
+  }
+
+  private void load()
+  {
+    if(!file.exists())
+      return;
+
+    try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] f = line.split("\t", -1);
+        if(f.length < 10)
+          continue;
+        try
+        {
+          cache.put(f[0], new Info(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Status.valueOf(f[3]), Long.parseLong(f[4]),
+                Integer.parseInt(f[5]), Integer.parseInt(f[6]), f[7], f[8], Integer.parseInt(f[9])));
+        }
+        catch(IllegalArgumentException e)
+        {
+          //bad line, it just gets probed again.
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      log("failed to read probe cache " + file + " (videos will be probed again).");
+      cache.clear();
+    }
+  }
+
+  /**
+   * Writes the cache (temp file + move) and the manifest if anything changed.
+   */
+  public synchronized void save()
+  {
+    if(!dirty)
+      return;
+    dirty = false;
+
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(file.getName() + ".tmp");
+    try
+    {
+      try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+      {
+        for(Info i : new ArrayList<>(cache.values()))
+        {
+          writer.write(String.join("\t", i.path, Long.toString(i.size), Long.toString(i.mtime), i.status.name(), Long.toString(i.durationMs),
+                Integer.toString(i.width), Integer.toString(i.height), i.videoCodec, i.audioCodec, Integer.toString(i.bitrate)));
+          writer.newLine();
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(IOException e)
+    {
+      dirty = true;
+      log("failed to save probe cache (see stack trace)");
+      e.printStackTrace();
+    }
+    LocalService.manifest().save();
+  }
+
+  /**
+   * What we learned about one video.
+   *
+   * durationMs is -1 and the rest is empty unless status is OK.
+   * bitrate is bits/sec (video + audio).
+   */
+  public static class Info
+  {
+    private final String path;
+    private final long size;
+    private final long mtime;
+    private final Status status;
+    private final long durationMs;
+    private final int width;
+    private final int height;
+    private final String videoCodec;
+    private final String audioCodec;
+    private final int bitrate;
+
+    Info(String path, long size, long mtime, Status status, long durationMs, int width, int height, String videoCodec, String audioCodec, int bitrate)
+    {
+      this.path = path;
+      this.size = size;
+      this.mtime = mtime;
+      this.status = status;
+      this.durationMs = durationMs;
+      this.width = width;
+      this.height = height;
+      this.videoCodec = videoCodec;
+      this.audioCodec = audioCodec;
+      this.bitrate = bitrate;
+    }
+
+    public String path() { return path; }
+    public Status status() { return status; }
+    public long durationMs() { return durationMs; }
+    public int width() { return width; }
+    public int height() { return height; }
+    public String videoCodec() { return videoCodec; }
+    public String audioCodec() { return audioCodec; }
+    public int bitrate() { return bitrate; }
+
+    /** Returns true if the video is bigger than the given resolution. */
+    public boolean exceeds(int maxWidth, int maxHeight) { return width > maxWidth || height > maxHeight; }
+
+    @Override
+    public String toString()
+    {
+      if(status != Status.OK)
+        return status.name();
+      return String.format("%dms %dx%d %s/%s %dkbps", durationMs, width, height, videoCodec, audioCodec, bitrate / 1000);
+    }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[MediaProbe] " + message);
+  }
+}
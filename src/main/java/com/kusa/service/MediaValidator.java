@@ -0,0 +1,621 @@
+package com.kusa.service;
+
+import com.kusa.Config;
+import com.kusa.util.MediaType;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.co.caprica.vlcj.factory.MediaPlayerFactory;
+import uk.co.caprica.vlcj.player.base.MediaPlayer;
+import uk.co.caprica.vlcj.player.base.MediaPlayerEventAdapter;
+import uk.co.caprica.vlcj.player.embedded.EmbeddedMediaPlayer;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.BufferFormat;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.BufferFormatCallback;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.RenderCallback;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.format.RV32BufferFormat;
+
+/**
+ * Class that checks videos before they are allowed in a playlist.
+ *
+ * a truncated download or a codec vlc can't decode used to show up as a
+ * black gap on screen. now every video version (path + size + mtime) is
+ * checked once, in the background:
+ *  - complete: not a partial download, not empty and not still being written.
+ *  - container: the structure holds up to the end of the file (mp4/mov box
+ *    walk, avi riff size, ts packet alignment, mkv/webm header).
+ *  - decodable: vlc could parse it (see MediaProbe) and actually decodes
+ *    a first frame (played muted into a tiny off screen buffer).
+ *
+ * results are cached on disk so a restart doesn't check again.
+ *
+ * a first frame that doesn't show up can just mean the machine was busy
+ * (or vlc was), so that isn't a verdict: nothing is cached and the file
+ * is checked again later with backoff (30s, 1m, 2m...). only a file that
+ * fails every one of 'validateAttempts' tries is marked invalid. broken
+ * containers are invalid right away, they fail the same way every time.
+ *
+ * properties:
+ *  - 'validationCachePath' where the cache lives (default $HOME/.jinzo/validation.cache).
+ *  - 'validateThreads' how many files are checked at once (default 1).
+ *  - 'validateTimeoutSeconds' how long a first frame may take (default 10).
+ *  - 'validateAttempts' first frame tries before a file is invalid (default 5).
+ *
+ * file layout (plain text, one video per line):
+ *  path, size, mtime, verdict, reason separated by tabs.
+ */
+public class MediaValidator
+{
+  public enum Verdict { VALID, INVALID }
+
+  /** Gets told when a video was checked. */
+  public interface Listener
+  {
+    void validated(String path, Verdict verdict);
+  }
+
+  private static final int THREADS = Math.max(1, Integer.parseInt(Config.getProperty("validateThreads", "1")));
+  private static final long FRAME_TIMEOUT_MILLIS = Long.parseLong(Config.getProperty("validateTimeoutSeconds", "10")) * 1000L;
+  private static final int ATTEMPTS = Math.max(1, Integer.parseInt(Config.getProperty("validateAttempts", "5")));
+  private static final long RETRY_MILLIS = 30_000L;
+  private static final long MAX_RETRY_MILLIS = 30L * 60_000L;
+  //a file changed this recently may still be copied in, look again later.
+  private static final long SETTLE_MILLIS = 5000L;
+  private static final int MAX_BOXES = 100_000;
+
+  private final File file;
+  private final Map<String, Result> cache;
+  private final Set<String> queued;
+  //first frame tries that didn't work out so far, per path.
+  private final Map<String, Integer> attempts;
+  private final List<Listener> listeners;
+  private ScheduledExecutorService pool;
+  private MediaPlayerFactory factory;
+  private volatile boolean dirty;
+
+  public MediaValidator() { this(Config.getProperty("validationCachePath", Config.getAppPath() + "validation.cache")); }
+  public MediaValidator(String cachePath)
+  {
+    this.file = new File(cachePath);
+    this.cache = new ConcurrentHashMap<>();
+    this.queued = ConcurrentHashMap.newKeySet();
+    this.attempts = new ConcurrentHashMap<>();
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.dirty = false;
+    load();
+  }
+
+  /**
+   * Starts the validator threads and queues every video that wasn't checked yet.
+   */
+  public synchronized void start()
+  {
+    if(pool != null)
+      return;
+    pool = Executors.newScheduledThreadPool(THREADS, r -> {
+      Thread t = new Thread(r, "media-validator");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      return t;
+    });
+
+    LocalService.index().subscribe((kind, path) -> {
+      if(kind == MediaIndex.Kind.REMOVED)
+      {
+        cache.remove(path);
+        attempts.remove(path);
+      }
+      else
+        validate(path);
+    });
+    int count = 0;
+    for(String path : LocalService.getLocalMRLS())
+      if(validate(path))
+        count++;
+    log(String.format("%d cached, %d videos queued for validation.", cache.size(), count));
+  }
+
+  public synchronized void shutdown()
+  {
+    if(pool != null)
+      pool.shutdownNow();
+    if(factory != null)
+      factory.release();
+  }
+
+  public void subscribe(Listener listener) { listeners.add(listener); }
+  public void unsubscribe(Listener listener) { listeners.remove(listener); }
+
+  /**
+   * Queues a video for validation if this version of it wasn't checked yet.
+   *
+   * @return true if it was queued.
+   */
+  public boolean validate(String path)
+  {
+    if(pool == null || LocalService.isPartial(new File(path).getName()))
+      return false;
+    if(MediaType.fromMimeType(LocalService.mimeType(path)) != MediaType.VIDEO)
+      return false;
+    if(get(path) != null || !queued.add(path))
+      return false;
+    pool.execute(() -> run(path));
+    return true;
+  }
+
+  /**
+   * Returns true if this version of the file passed validation. never blocks.
+   *
+   * files we don't know yet are queued and count as not valid (yet).
+   */
+  public boolean isValid(String path)
+  {
+    Result result = get(path);
+    if(result == null)
+    {
+      validate(path);
+      return false;
+    }
+    return result.verdict == Verdict.VALID;
+  }
+
+  /**
+   * Returns the paths that passed validation (the rest are queued if unknown).
+   */
+  public List<String> validOnly(Collection<String> paths)
+  {
+    List<String> valid = new ArrayList<>();
+    for(String path : paths)
+      if(isValid(path))
+        valid.add(path);
+    return valid;
+  }
+
+  /**
+   * Waits until one of the paths is valid or none of them are still being checked.
+   *
+   * for startup, so the first playlist isn't empty just because nothing was checked yet.
+   *
+   * @return true if at least one path is valid.
+   */
+  public boolean awaitAny(Collection<String> paths, long timeoutMillis)
+  {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    while(true)
+    {
+      boolean waiting = false;
+      for(String path : paths)
+      {
+        if(isValid(path))
+          return true;
+        waiting |= queued.contains(path);
+      }
+      if(!waiting || System.currentTimeMillis() > deadline)
+        return false;
+      try
+      {
+        Thread.sleep(250L);
+      }
+      catch(InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Returns the result for this version of a file, or null if it wasn't checked.
+   */
+  public Result get(String path)
+  {
+    Result result = cache.get(path);
+    if(result == null)
+      return null;
+    LocalService.FileInfo attrs = LocalService.fileInfo(path);
+    return (attrs.exists() && attrs.size() == result.size && attrs.mtime() == result.mtime) ? result : null;
+  }
+
+  /** Returns the number of videos waiting to be checked. */
+  public int pending() { return queued.size(); }
+
+  private void run(String path)
+  {
+    boolean done = true;
+    try
+    {
+      File local = new File(path);
+      if(!local.exists())
+        return;
+      final long size = local.length();
+      final long mtime = local.lastModified();
+      if(System.currentTimeMillis() - mtime < SETTLE_MILLIS)
+      {
+        //still being written? look again when it settled.
+        done = false;
+        pool.schedule(() -> run(path), SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        return;
+      }
+
+      long start = System.nanoTime();
+      String problem;
+      try
+      {
+        problem = check(local);
+        attempts.remove(path);
+      }
+      catch(RetryException e)
+      {
+        if(Thread.currentThread().isInterrupted())
+          return; //shutting down, we learned nothing about the file.
+        int attempt = attempts.merge(path, 1, Integer::sum);
+        if(attempt < ATTEMPTS)
+        {
+          long delay = Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << (attempt - 1));
+          log(String.format("%s: %s, trying again in %ds (try %d of %d).", local.getName(), e.getMessage(), delay / 1000, attempt, ATTEMPTS));
+          done = false;
+          pool.schedule(() -> run(path), delay, TimeUnit.MILLISECONDS);
+          return;
+        }
+        attempts.remove(path);
+        problem = String.format("%s (%d tries)", e.getMessage(), attempt);
+      }
+      Result result = new Result(path, size, mtime, problem == null ? Verdict.VALID : Verdict.INVALID, problem == null ? "" : problem);
+      cache.put(path, result);
+      dirty = true;
+      if(result.verdict == Verdict.VALID)
+        log(String.format("%s is valid (%.1fms).", local.getName(), (System.nanoTime() - start) / 1_000_000d));
+      else
+        log(String.format("WARNING %s won't be played: %s", local.getName(), problem));
+      for(Listener listener : listeners)
+        listener.validated(path, result.verdict);
+    }
+    catch(RuntimeException e)
+    {
+      log("failed to validate " + path + " " + e.getMessage());
+    }
+    finally
+    {
+      if(done)
+      {
+        queued.remove(path);
+        if(queued.isEmpty())
+          save();
+      }
+    }
+  }
+
+  /**
+   * Runs every check on a file, cheapest first.
+   *
+   * @return what is wrong with the file or null if nothing is.
+   * @throws RetryException if the first frame check didn't get an answer.
+   */
+  private String check(File local) throws RetryException
+  {
+    if(local.length() == 0)
+      return "file is empty";
+    String problem = checkContainer(local);
+    if(problem != null)
+      return problem;
+
+    MediaProbe.Info info = LocalService.probe().get(local.getAbsolutePath());
+    if(info != null && info.status() == MediaProbe.Status.FAILED)
+      return "vlc can't parse it";
+    if(info != null && info.status() == MediaProbe.Status.OK && info.width() <= 0 && info.videoCodec().isEmpty())
+      return "no video track";
+    checkFirstFrame(local);
+    return null;
+  }
+
+  /**
+   * Checks that the container structure covers the whole file.
+   *
+   * @return what is wrong or null (formats we don't know pass).
+   */
+  static String checkContainer(File local)
+  {
+    String name = local.getName().toLowerCase();
+    String ext = name.substring(name.lastIndexOf('.') + 1);
+    try(RandomAccessFile in = new RandomAccessFile(local, "r"))
+    {
+      switch(ext)
+      {
+        case "mp4":
+        case "m4v":
+        case "mov":
+        case "3gp":
+          return checkBoxes(in);
+        case "avi":
+          return checkRiff(in);
+        case "ts":
+          return checkTransportStream(in);
+        case "mkv":
+        case "webm":
+          return (in.length() >= 4 && in.readInt() == 0x1A45DFA3) ? null : "no matroska header";
+        default:
+          return null;
+      }
+    }
+    catch(IOException e)
+    {
+      return "can't read it (" + e.getMessage() + ")";
+    }
+  }
+
+  /**
+   * Walks the top level boxes of an mp4/mov, a truncated download has a box
+   * that runs past the end of the file.
+   */
+  private static String checkBoxes(RandomAccessFile in) throws IOException
+  {
+    final long length = in.length();
+    long offset = 0;
+    boolean moov = false;
+    boolean mdat = false;
+    byte[] header = new byte[16];
+    for(int boxes = 0; offset < length; boxes++)
+    {
+      if(boxes > MAX_BOXES)
+        return "too many boxes";
+      if(length - offset < 8)
+        return "stray bytes at the end";
+      in.seek(offset);
+      in.readFully(header, 0, 8);
+      ByteBuffer b = ByteBuffer.wrap(header);
+      long size = b.getInt(0) & 0xFFFFFFFFL;
+      String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+      for(int i = 4; i < 8; i++)
+        if(header[i] < 0x20 || header[i] > 0x7E)
+          return String.format("garbage at byte %d", offset);
+      if(size == 1)
+      {
+        in.readFully(header, 8, 8);
+        size = b.getLong(8);
+      }
+      else if(size == 0)
+        size = length - offset; //runs to the end of the file.
+
+      if(size < 8)
+        return String.format("bad '%s' box at byte %d", type, offset);
+      if(offset + size > length)
+        return String.format("truncated, '%s' box needs %d more bytes", type, offset + size - length);
+      moov |= type.equals("moov");
+      mdat |= type.equals("mdat");
+      offset += size;
+    }
+    if(!moov)
+      return "no 'moov' box (not finished writing?)";
+    if(!mdat)
+      return "no 'mdat' box";
+    return null;
+  }
+
+  private static String checkRiff(RandomAccessFile in) throws IOException
+  {
+    if(in.length() < 12 || in.readInt() != 0x52494646) //"RIFF"
+      return "no riff header";
+    long size = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+    if(size + 8 > in.length())
+      return String.format("truncated, riff needs %d more bytes", size + 8 - in.length());
+    return null;
+  }
+
+  private static String checkTransportStream(RandomAccessFile in) throws IOException
+  {
+    final long length = in.length();
+    if(length < 188 || in.read() != 0x47)
+      return "no ts sync byte";
+    if(length % 188 != 0)
+      return "ends in a partial packet";
+    in.seek(length - 188);
+    return (in.read() == 0x47) ? null : "last packet is out of sync";
+  }
+
+  /**
+   * Plays the file muted into a tiny buffer and waits for the first frame.
+   *
+   * @throws RetryException if no frame was decoded, that can be the file or just a busy machine.
+   */
+  private void checkFirstFrame(File local) throws RetryException
+  {
+    final CountDownLatch ended = new CountDownLatch(1);
+    final AtomicBoolean decoded = new AtomicBoolean();
+    final AtomicBoolean errored = new AtomicBoolean();
+    EmbeddedMediaPlayer player = factory().mediaPlayers().newEmbeddedMediaPlayer();
+    try
+    {
+      FrameCatcher catcher = new FrameCatcher(decoded, ended);
+      player.videoSurface().set(factory().videoSurfaces().newVideoSurface(catcher, catcher, true));
+      player.events().addMediaPlayerEventListener(new MediaPlayerEventAdapter() {
+        @Override
+        public void error(MediaPlayer mp)
+        {
+          errored.set(true);
+          ended.countDown();
+        }
+
+        @Override
+        public void finished(MediaPlayer mp) { ended.countDown(); }
+      });
+      if(!player.media().play(local.getAbsolutePath(), ":no-audio", ":no-osd"))
+        throw new RetryException("vlc won't open it");
+      ended.await(FRAME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      if(decoded.get())
+        return;
+      if(errored.get())
+        throw new RetryException("vlc failed before the first frame");
+      throw new RetryException(String.format("no frame decoded within %ds", FRAME_TIMEOUT_MILLIS / 1000));
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RetryException("interrupted");
+    }
+    finally
+    {
+      player.controls().stop();
+      player.release();
+    }
+  }
+
+  /**
+   * A check that didn't get an answer, the file is checked again later.
+   */
+  private static class RetryException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    RetryException(String message) { super(message); }
+  }
+
+  private synchronized MediaPlayerFactory factory()
+  {
+    if(factory == null)
+      factory = new MediaPlayerFactory("--quiet", "--no-audio", "--no-osd");
+    return factory;
+  }
+
+  /**
+   * Video surface that only notes that a frame showed up (vlc scales it down to nothing).
+   */
+  private static class FrameCatcher implements BufferFormatCallback, RenderCallback
+  {
+    private final AtomicBoolean decoded;
+    private final CountDownLatch ended;
+
+    FrameCatcher(AtomicBoolean decoded, CountDownLatch ended)
+    {
+      this.decoded = decoded;
+      this.ended = ended;
+    }
+
+    @Override
+    public BufferFormat getBufferFormat(int sourceWidth, int sourceHeight) { return new RV32BufferFormat(16, 16); }
+
+    @Override
+    public void allocatedBuffers(ByteBuffer[] buffers) {}
+
+    @Override
+    public void display(MediaPlayer mediaPlayer, ByteBuffer[] nativeBuffers, BufferFormat bufferFormat)
+    {
+      decoded.set(true);
+      ended.countDown();
+    }
+  }
+
+  private void load()
+  {
+    if(!file.exists())
+      return;
+
+    try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] f = line.split("\t", -1);
+        if(f.length < 5)
+          continue;
+        try
+        {
+          cache.put(f[0], new Result(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Verdict.valueOf(f[3]), f[4]));
+        }
+        catch(IllegalArgumentException e)
+        {
+          //bad line, it just gets checked again.
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      log("failed to read validation cache " + file + " (videos will be checked again).");
+      cache.clear();
+    }
+  }
+
+  /**
+   * Writes the cache (temp file + move) if anything changed.
+   */
+  public synchronized void save()
+  {
+    if(!dirty)
+      return;
+    dirty = false;
+
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(file.getName() + ".tmp");
+    try
+    {
+      try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+      {
+        for(Result r : new ArrayList<>(cache.values()))
+        {
+          writer.write(String.join("\t", r.path, Long.toString(r.size), Long.toString(r.mtime), r.verdict.name(),
+                r.reason.replace('\t', ' ').replace('\n', ' ')));
+          writer.newLine();
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch(IOException e)
+    {
+      dirty = true;
+      log("failed to save validation cache (see stack trace)");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The outcome of checking one version of a video.
+   *
+   * reason is empty for valid files.
+   */
+  public static class Result
+  {
+    private final String path;
+    private final long size;
+    private final long mtime;
+    private final Verdict verdict;
+    private final String reason;
+
+    Result(String path, long size, long mtime, Verdict verdict, String reason)
+    {
+      this.path = path;
+      this.size = size;
+      this.mtime = mtime;
+      this.verdict = verdict;
+      this.reason = reason;
+    }
+
+    public String path() { return path; }
+    public Verdict verdict() { return verdict; }
+    public String reason() { return reason; }
+
+    @Override
+    public String toString() { return verdict + (reason.isEmpty() ? "" : " (" + reason + ")"); }
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[MediaValidator] " + message);
+  }
+}
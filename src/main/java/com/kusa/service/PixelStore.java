@@ -0,0 +1,312 @@
+package com.kusa.service;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that keeps photos as raw, already scaled ARGB pixels for one panel size.
+ *
+ * every photo is one file: a 16 byte header (magic, width, height) then
+ * width * height ints in native byte order. loading maps the file and
+ * bulk copies the mapped pixels into a plain int backed image, nothing
+ * is decoded. the copy matters: java2d can only accelerate (cache on the
+ * gpu) images backed by its own DataBufferInt, an image over the mapped
+ * pages would be drawn pixel by pixel every frame.
+ *
+ * each panel size has its own folder ("640x1080/"), a resolution change
+ * just starts a new store. sync() brings the store in line with the
+ * photos folder: entries of photos that are gone are deleted first, then
+ * new or edited photos are written while the budget has room. the bytes
+ * used are counted once at start and kept as a running total.
+ */
+public class PixelStore
+{
+  private static final int MAGIC = 0x4A4E5A50; //"JNZP"
+  private static final int HEADER_BYTES = 16;
+
+  private final int width;
+  private final int height;
+  private final Path dir;
+  private final long budgetBytes;
+  private final AtomicLong used;
+  private final AtomicLong loads;
+  private final AtomicLong decodes;
+
+  /**
+   * @param root folder that holds a store per resolution.
+   * @param budgetBytes stop writing new entries past this size (0 is no limit).
+   */
+  public PixelStore(String root, int width, int height, long budgetBytes)
+  {
+    this.width = width;
+    this.height = height;
+    this.dir = new File(root, width + "x" + height).toPath();
+    this.budgetBytes = budgetBytes;
+    this.loads = new AtomicLong();
+    this.decodes = new AtomicLong();
+    LocalService.checkDir(dir.toString());
+    this.used = new AtomicLong(countBytes());
+  }
+
+  public int width() { return width; }
+  public int height() { return height; }
+  public Path dir() { return dir; }
+
+  /** Returns the bytes one entry takes on disk. */
+  public long entryBytes() { return HEADER_BYTES + 4L * width * height; }
+
+  /**
+   * Returns the stored pixels of a photo as an image, or null if we don't have them.
+   *
+   * the pixels are copied out of the mapped file once, so the image is
+   * a normal (managed) TYPE_INT_ARGB image.
+   */
+  public BufferedImage load(String path, long mtime)
+  {
+    Path entry = entry(path, mtime);
+    if(!Files.exists(entry))
+      return null;
+    try(FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ))
+    {
+      if(channel.size() != entryBytes())
+        throw new IOException("wrong size " + channel.size());
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.nativeOrder());
+      if(mapped.getInt(0) != MAGIC || mapped.getInt(4) != width || mapped.getInt(8) != height)
+        throw new IOException("bad header");
+      mapped.position(HEADER_BYTES);
+      IntBuffer pixels = mapped.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+      loads.incrementAndGet();
+      return copy(pixels, width, height);
+    }
+    catch(IOException e)
+    {
+      log("bad pixel entry " + entry + " (" + e.getMessage() + "), dropping it.");
+      delete(entry);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the pixels of an already scaled photo.
+   *
+   * @return true if it was written (false if over budget or it failed).
+   */
+  public boolean put(String path, long mtime, BufferedImage image)
+  {
+    if(image.getWidth() != width || image.getHeight() != height)
+      return false;
+    if(!reserve(entryBytes()))
+      return false;
+
+    Path entry = entry(path, mtime);
+    Path temp = entry.resolveSibling(entry.getFileName() + ".tmp");
+    int[] row = new int[width];
+    ByteBuffer buffer = ByteBuffer.allocate(4 * width).order(ByteOrder.nativeOrder());
+    try
+    {
+      //rewriting an entry replaces its bytes, it doesn't add to them.
+      final long replaced = Files.exists(entry) ? Files.size(entry) : 0L;
+      try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+      {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(width).putInt(height).putInt(0).flip();
+        while(header.hasRemaining())
+          channel.write(header);
+        for(int y = 0; y < height; y++)
+        {
+          image.getRGB(0, y, width, 1, row, 0, width);
+          buffer.clear();
+          buffer.asIntBuffer().put(row);
+          buffer.limit(4 * width);
+          while(buffer.hasRemaining())
+            channel.write(buffer);
+        }
+      }
+      Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      used.addAndGet(-replaced);
+      return true;
+    }
+    catch(IOException e)
+    {
+      log("failed to store pixels for " + path + " " + e.getMessage());
+      used.addAndGet(-entryBytes());
+      delete(temp);
+      return false;
+    }
+  }
+
+  /**
+   * Brings the store in line with the photos we have.
+   *
+   * entries of photos that changed or are gone are deleted first so they
+   * don't hold up the budget. then photos without an entry are decoded
+   * and written, once the store is full the rest are skipped without
+   * decoding them. unchanged photos cost nothing.
+   *
+   * @param photos absolute paths of every photo that should be stored.
+   * @return number of entries written.
+   */
+  public int sync(Collection<String> photos)
+  {
+    long start = System.nanoTime();
+    Map<String, File> missing = new LinkedHashMap<>();
+    Set<String> wanted = new HashSet<>();
+    for(String path : photos)
+    {
+      File photo = new File(path);
+      if(!photo.exists())
+        continue;
+      Path entry = entry(path, photo.lastModified());
+      wanted.add(entry.getFileName().toString());
+      if(!Files.exists(entry))
+        missing.put(path, photo);
+    }
+
+    int deleted = 0;
+    try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+    {
+      for(Path entry : entries)
+        if(!wanted.contains(entry.getFileName().toString()) && delete(entry))
+          deleted++;
+    }
+    catch(IOException e)
+    {
+      log("failed to list " + dir + " " + e.getMessage());
+    }
+
+    int written = 0;
+    int skipped = 0;
+    for(Map.Entry<String, File> photo : missing.entrySet())
+    {
+      if(!hasRoom())
+      {
+        skipped++;
+        continue;
+      }
+      try
+      {
+        decodes.incrementAndGet();
+        BufferedImage scaled = ImageDecoder.decode(photo.getValue(), width, height);
+        if(put(photo.getKey(), photo.getValue().lastModified(), scaled))
+          written++;
+        else
+          skipped++;
+        scaled.flush();
+      }
+      catch(IOException e)
+      {
+        log("failed to decode " + photo.getKey() + " " + e.getMessage());
+      }
+    }
+
+    if(written > 0 || deleted > 0 || skipped > 0)
+      log(String.format("%dx%d synced in %.1fms: %d written, %d deleted, %d over budget", width, height,
+            (System.nanoTime() - start) / 1_000_000d, written, deleted, skipped));
+    return written;
+  }
+
+  /** Returns the bytes used by the store. */
+  public long usedBytes() { return used.get(); }
+
+  /** Returns true if one more entry fits in the budget. */
+  private boolean hasRoom() { return budgetBytes <= 0 || used.get() + entryBytes() <= budgetBytes; }
+
+  /**
+   * Counts the bytes for a new entry if it fits in the budget.
+   *
+   * @return false if it doesn't fit (nothing is counted).
+   */
+  private boolean reserve(long bytes)
+  {
+    while(true)
+    {
+      long current = used.get();
+      if(budgetBytes > 0 && current + bytes > budgetBytes)
+        return false;
+      if(used.compareAndSet(current, current + bytes))
+        return true;
+    }
+  }
+
+  /** Adds up the entries on disk (only done once, when the store opens). */
+  private long countBytes()
+  {
+    long total = 0;
+    try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.argb"))
+    {
+      for(Path entry : entries)
+        total += Files.size(entry);
+    }
+    catch(IOException e)
+    {
+      //count what we could.
+    }
+    return total;
+  }
+
+  /** Returns the number of images loaded from the store. */
+  public long loads() { return loads.get(); }
+
+  /** Returns the number of photos sync() decoded. */
+  public long decodes() { return decodes.get(); }
+
+  private Path entry(String path, long mtime)
+  {
+    MessageDigest digest = LocalService.newDigest();
+    digest.update(String.format("%s|%d", new File(path).getAbsolutePath(), mtime).getBytes(StandardCharsets.UTF_8));
+    return dir.resolve(LocalService.toHex(digest.digest()) + ".argb");
+  }
+
+  /** Deletes an entry (or a leftover temp file), entries are taken off the running total. */
+  private boolean delete(Path entry)
+  {
+    try
+    {
+      final long size = (entry.getFileName().toString().endsWith(".argb") && Files.exists(entry)) ? Files.size(entry) : 0L;
+      if(!Files.deleteIfExists(entry))
+        return false;
+      used.addAndGet(-size);
+      return true;
+    }
+    catch(IOException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Copies ARGB ints into a new BufferedImage in one bulk get.
+   */
+  private static BufferedImage copy(IntBuffer pixels, int width, int height)
+  {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    pixels.get(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, width * height);
+    return image;
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[PixelStore] " + message);
+  }
+}
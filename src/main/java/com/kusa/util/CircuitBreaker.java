@@ -0,0 +1,145 @@
+package com.kusa.util;
+
+/**
+ * Simple circuit breaker for calls to a remote service.
+ *
+ *  - CLOSED: calls go through, consecutive failures are counted.
+ *  - OPEN: after failureThreshold failures in a row calls are refused
+ *          until openMillis have passed.
+ *  - HALF_OPEN: one trial call is let through, success closes the
+ *               breaker again, failure opens it for twice as long
+ *               (capped at maxOpenMillis).
+ */
+public class CircuitBreaker
+{
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long baseOpenMillis;
+  private final long maxOpenMillis;
+
+  private State state;
+  private int failures;
+  private long openMillis;
+  private long openedAt;
+  private boolean trialInFlight;
+
+  public CircuitBreaker(String name, int failureThreshold, long openMillis, long maxOpenMillis)
+  {
+    this.name = name;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.baseOpenMillis = openMillis;
+    this.maxOpenMillis = Math.max(openMillis, maxOpenMillis);
+    this.state = State.CLOSED;
+    this.failures = 0;
+    this.openMillis = openMillis;
+    this.openedAt = 0L;
+    this.trialInFlight = false;
+  }
+
+  /**
+   * Returns true if a call may be made right now.
+   */
+  public synchronized boolean allowRequest()
+  {
+    updateState();
+    switch(state)
+    {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if(trialInFlight)
+          return false;
+        trialInFlight = true;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public synchronized void recordSuccess()
+  {
+    if(state != State.CLOSED)
+      log("closed, calls are going through again.");
+    state = State.CLOSED;
+    failures = 0;
+    openMillis = baseOpenMillis;
+    trialInFlight = false;
+  }
+
+  public synchronized void recordFailure()
+  {
+    failures++;
+    if(state == State.HALF_OPEN)
+    {
+      openMillis = Math.min(maxOpenMillis, openMillis * 2);
+      open();
+    }
+    else if(state == State.CLOSED && failures >= failureThreshold)
+      open();
+  }
+
+  /**
+   * Ends a call that told us nothing about the service (bad credentials,
+   * a bug on our side). a half open trial is given back so the next call
+   * can be the trial, otherwise nothing changes.
+   */
+  public synchronized void release()
+  {
+    if(state == State.HALF_OPEN)
+      trialInFlight = false;
+  }
+
+  private void open()
+  {
+    state = State.OPEN;
+    openedAt = System.currentTimeMillis();
+    trialInFlight = false;
+    log(String.format("open after %d failures, refusing calls for %ds.", failures, openMillis / 1000));
+  }
+
+  /**
+   * Returns the state, an open breaker whose time is up is half open.
+   */
+  public synchronized State state()
+  {
+    updateState();
+    return state;
+  }
+
+  /**
+   * Returns true while calls are refused.
+   *
+   * once the open time is up this moves to half open (and returns false)
+   * so callers that check before calling get to make the trial call.
+   */
+  public synchronized boolean isOpen()
+  {
+    updateState();
+    return state == State.OPEN;
+  }
+
+  private void updateState()
+  {
+    if(state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis)
+    {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+      log("half open, letting a trial call through.");
+    }
+  }
+
+  /** Returns millis until the next trial call is allowed (0 if not open). */
+  public synchronized long remainingOpenMillis()
+  {
+    if(state != State.OPEN)
+      return 0L;
+    return Math.max(0L, openMillis - (System.currentTimeMillis() - openedAt));
+  }
+
+  private void log(String message)
+  {
+    System.out.println("[CircuitBreaker " + name + "] " + message);
+  }
+}
@@ -0,0 +1,23 @@
+package com.kusa.util;
+
+/**
+ * The kinds of media the player knows how to show.
+ */
+public enum MediaType
+{
+  VIDEO, IMAGE, OTHER;
+
+  /**
+   * Returns the media type for a mime type ("video/mp4" is VIDEO).
+   */
+  public static MediaType fromMimeType(String mimeType)
+  {
+    if(mimeType == null)
+      return OTHER;
+    if(mimeType.startsWith("video"))
+      return VIDEO;
+    if(mimeType.startsWith("image"))
+      return IMAGE;
+    return OTHER;
+  }
+}
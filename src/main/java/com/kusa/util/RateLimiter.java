@@ -0,0 +1,66 @@
+package com.kusa.util;
+
+/**
+ * Simple token bucket shared by every thread that wants to move bytes.
+ *
+ * the bucket refills at bytesPerSecond and can hold at most one
+ * second worth of tokens, so short bursts are allowed but the
+ * average rate stays under the cap.
+ *
+ * a rate of 0 (or less) means unlimited and acquire never blocks.
+ */
+public class RateLimiter
+{
+  private final long bytesPerSecond;
+  private double available;
+  private long lastRefill;
+
+  public RateLimiter(long bytesPerSecond)
+  {
+    this.bytesPerSecond = bytesPerSecond;
+    this.available = bytesPerSecond;
+    this.lastRefill = System.nanoTime();
+  }
+
+  public boolean isLimited() { return bytesPerSecond > 0; }
+  public long bytesPerSecond() { return bytesPerSecond; }
+
+  /**
+   * Blocks until the caller is allowed to move the given amount of bytes.
+   *
+   * big requests are paid for in pieces no larger than the bucket
+   * so one writer can't starve the others.
+   *
+   * @param bytes amount of bytes about to be transferred.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  public void acquire(long bytes) throws InterruptedException
+  {
+    if(!isLimited())
+      return;
+
+    long remaining = bytes;
+    while(remaining > 0)
+    {
+      long piece = Math.min(remaining, bytesPerSecond);
+      long waitNanos;
+      synchronized(this)
+      {
+        refill();
+        available -= piece;
+        //if we went negative we owe time, sleep it off outside the lock.
+        waitNanos = (available < 0) ? (long)(-available * 1_000_000_000d / bytesPerSecond) : 0L;
+      }
+      if(waitNanos > 0)
+        Thread.sleep(waitNanos / 1_000_000L, (int)(waitNanos % 1_000_000L));
+      remaining -= piece;
+    }
+  }
+
+  private void refill()
+  {
+    long now = System.nanoTime();
+    available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1_000_000_000d);
+    lastRefill = now;
+  }
+}
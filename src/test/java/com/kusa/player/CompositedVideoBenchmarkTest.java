@@ -0,0 +1,163 @@
+package com.kusa.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.awt.BorderLayout;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+import org.junit.jupiter.api.Test;
+import uk.co.caprica.vlcj.player.component.EmbeddedMediaPlayerComponent;
+import uk.co.caprica.vlcj.player.embedded.videosurface.callback.BufferFormat;
+
+/**
+ * CPU use of the composited mode (CallbackVideoView) against the embedded one.
+ *
+ * the first test feeds synthetic 1080p frames through a surface the way
+ * vlc does and paints them into a back buffer, it always runs and checks
+ * a frame costs well under a frame time and allocates next to nothing.
+ *
+ * the second plays a real video with vlc in both modes and compares the
+ * process cpu time, it needs a display and -Djinzo.benchmarkVideo=<file>.
+ * the timings are printed for comparing runs.
+ */
+class CompositedVideoBenchmarkTest
+{
+  private static final int WIDTH = 1920;
+  private static final int HEIGHT = 1080;
+  private static final int WARMUP_FRAMES = 120;
+  private static final int FRAMES = 600;
+  //a 60fps frame time, the copy and paint have to leave room for decoding.
+  private static final long LIMIT_NANOS_PER_FRAME = 16_000_000L;
+  private static final String VIDEO = System.getProperty("jinzo.benchmarkVideo");
+  private static final long PLAY_MILLIS = 10_000L;
+
+  /** Runs the surface callbacks and a paint, returns cpu nanos and allocated bytes of this thread. */
+  private static long[] frames(CallbackVideoView view, CallbackVideoView.Surface surface, ByteBuffer[] buffers, BufferFormat format, Graphics2D back, int count)
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpu = threads.getCurrentThreadCpuTime();
+    long allocated = allocatedBytes();
+    for(int i = 0; i < count; i++)
+    {
+      buffers[0].putInt(0, i); //vlc wrote a new frame.
+      surface.display(null, buffers, format);
+      view.paint(back);
+    }
+    return new long[] {threads.getCurrentThreadCpuTime() - cpu, allocatedBytes() - allocated};
+  }
+
+  private static long allocatedBytes()
+  {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    return 0L;
+  }
+
+  @Test
+  void copyAndPaintFullHdFrames()
+  {
+    CallbackVideoView view = new CallbackVideoView();
+    view.setSize(WIDTH, HEIGHT);
+    CallbackVideoView.Surface surface = view.newSurface();
+    view.show(surface);
+
+    BufferFormat format = surface.getBufferFormat(WIDTH, HEIGHT);
+    ByteBuffer[] buffers = {ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4)};
+    IntBuffer pixels = buffers[0].order(ByteOrder.nativeOrder()).asIntBuffer();
+    for(int i = 0; i < WIDTH * HEIGHT; i++)
+      pixels.put(i, 0x00336699);
+    surface.allocatedBuffers(buffers);
+
+    BufferedImage backBuffer = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Graphics2D back = backBuffer.createGraphics();
+    try
+    {
+      frames(view, surface, buffers, format, back, WARMUP_FRAMES);
+      long[] used = frames(view, surface, buffers, format, back, FRAMES);
+      long nanosPerFrame = used[0] / FRAMES;
+      long bytesPerFrame = used[1] / FRAMES;
+
+      System.out.println(String.format("[CompositedVideoBenchmark] %dx%d copy+paint %,dus cpu per frame, %,d bytes allocated per frame, avg copy %.0fus",
+            WIDTH, HEIGHT, nanosPerFrame / 1000L, bytesPerFrame, view.averageCopyMicros()));
+      assertEquals(0x336699, backBuffer.getRGB(WIDTH / 2, HEIGHT / 2) & 0xFFFFFF, "the frame should be painted");
+      assertTrue(nanosPerFrame < LIMIT_NANOS_PER_FRAME, "a frame took " + nanosPerFrame / 1000L + "us");
+      //a copied frame would be 8MB, this only leaves room for java2d's small change.
+      assertTrue(bytesPerFrame < 64 * 1024, "a frame allocated " + bytesPerFrame + " bytes");
+    }
+    finally
+    {
+      back.dispose();
+    }
+  }
+
+  /** Plays the video for PLAY_MILLIS and returns the process cpu time it took. */
+  private static long play(boolean composited, CallbackVideoView[] viewOut) throws Exception
+  {
+    JFrame[] frame = new JFrame[1];
+    EmbeddedMediaPlayerComponent[] component = new EmbeddedMediaPlayerComponent[1];
+    SwingUtilities.invokeAndWait(() -> {
+      frame[0] = new JFrame("jinzo benchmark");
+      component[0] = new EmbeddedMediaPlayerComponent();
+      frame[0].setContentPane(component[0]);
+      if(composited)
+      {
+        //what VideoPanel.setupComposited does.
+        CallbackVideoView view = new CallbackVideoView();
+        CallbackVideoView.Surface surface = view.newSurface();
+        component[0].mediaPlayer().videoSurface().set(component[0].mediaPlayerFactory().videoSurfaces().newVideoSurface(surface, surface, true));
+        component[0].removeAll();
+        component[0].setLayout(new BorderLayout());
+        component[0].add(view, BorderLayout.CENTER);
+        view.show(surface);
+        viewOut[0] = view;
+      }
+      frame[0].setSize(1280, 720);
+      frame[0].setVisible(true);
+    });
+
+    try
+    {
+      component[0].mediaPlayer().media().play(VIDEO, ":input-repeat=65535");
+      Thread.sleep(2_000L); //past startup.
+      com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+      long cpu = os.getProcessCpuTime();
+      Thread.sleep(PLAY_MILLIS);
+      return os.getProcessCpuTime() - cpu;
+    }
+    finally
+    {
+      component[0].mediaPlayer().controls().stop();
+      SwingUtilities.invokeAndWait(() -> {
+        component[0].release();
+        frame[0].dispose();
+      });
+    }
+  }
+
+  @Test
+  void compareWithEmbeddedPlayback() throws Exception
+  {
+    assumeTrue(VIDEO != null, "set -Djinzo.benchmarkVideo=<file> to compare against vlc");
+    assumeFalse(GraphicsEnvironment.isHeadless(), "needs a display");
+
+    long embedded = play(false, new CallbackVideoView[1]);
+    CallbackVideoView[] view = new CallbackVideoView[1];
+    long composited = play(true, view);
+
+    System.out.println(String.format("[CompositedVideoBenchmark] %s for %,dms: embedded %.1f%% of a core, composited %.1f%% of a core (%d frames, avg copy %.0fus)",
+          VIDEO, PLAY_MILLIS, embedded / (PLAY_MILLIS * 10_000d), composited / (PLAY_MILLIS * 10_000d), view[0].frames(), view[0].averageCopyMicros()));
+    assertTrue(view[0].frames() > 0, "vlc rendered no frames into the view");
+  }
+}
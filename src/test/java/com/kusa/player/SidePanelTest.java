@@ -0,0 +1,25 @@
+package com.kusa.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.kusa.player.TransitionCanvas.Mode;
+import org.junit.jupiter.api.Test;
+
+class SidePanelTest
+{
+  @Test
+  void transitionIgnoresCaseAndSpaces()
+  {
+    assertEquals(Mode.CROSSFADE, SidePanel.parseTransition("crossfade"));
+    assertEquals(Mode.SLIDE, SidePanel.parseTransition(" Slide "));
+    assertEquals(Mode.NONE, SidePanel.parseTransition("NONE"));
+  }
+
+  @Test
+  void unknownTransitionIsNone()
+  {
+    assertEquals(Mode.NONE, SidePanel.parseTransition("crosfade"));
+    assertEquals(Mode.NONE, SidePanel.parseTransition(""));
+    assertEquals(Mode.NONE, SidePanel.parseTransition(null));
+  }
+}
@@ -0,0 +1,59 @@
+package com.kusa.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import org.junit.jupiter.api.Test;
+
+class TickerPanelTest
+{
+  private static final String SEPARATOR = TickerPanel.SEPARATOR;
+  private static final Font FONT = new Font(Font.SANS_SERIF, Font.BOLD, 60);
+  private static final FontRenderContext FRC = new FontRenderContext(null, true, true);
+
+  @Test
+  void colorsAreHex()
+  {
+    assertEquals(new Color(0xffcc00), TickerPanel.parseColor("tickerForeground", "ffcc00", Color.WHITE));
+    assertEquals(new Color(0x123456), TickerPanel.parseColor("tickerForeground", " #123456 ", Color.WHITE));
+  }
+
+  @Test
+  void badColorIsTheDefault()
+  {
+    assertEquals(Color.WHITE, TickerPanel.parseColor("tickerForeground", "white", Color.WHITE));
+    assertEquals(Color.BLACK, TickerPanel.parseColor("tickerBackground", "", Color.BLACK));
+  }
+
+  @Test
+  void shortTextIsKept()
+  {
+    String text = "coffee 2.50" + SEPARATOR;
+    assertEquals(text, TickerPanel.fit(text, FONT, FRC, 8192));
+  }
+
+  @Test
+  void longTextIsCutAfterAWholeMessage()
+  {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 500; i++)
+      text.append("message number ").append(i).append(SEPARATOR);
+
+    String kept = TickerPanel.fit(text.toString(), FONT, FRC, 8192);
+    assertTrue(new TextLayout(kept, FONT, FRC).getAdvance() <= 8192, "should fit the strip");
+    assertTrue(kept.startsWith("message number 0" + SEPARATOR));
+    assertTrue(kept.endsWith(SEPARATOR));
+    assertTrue(text.toString().startsWith(kept), "only whole messages from the start");
+  }
+
+  @Test
+  void oneHugeMessageIsCut()
+  {
+    String kept = TickerPanel.fit("x".repeat(100_000) + SEPARATOR, FONT, FRC, 8192);
+    assertTrue(kept.length() < 10_000, "kept " + kept.length());
+  }
+}
@@ -0,0 +1,210 @@
+package com.kusa.playlist;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Hammers a ConcurrentPlaylist from several threads at once.
+ */
+class ConcurrentPlaylistTest
+{
+  private static final int TRACKS = 200;
+  private static final int THREADS = 8;
+
+  @TempDir
+  Path dir;
+
+  private final ExecutorService pool = Executors.newFixedThreadPool(THREADS + 2);
+
+  @AfterEach
+  void stop()
+  {
+    pool.shutdownNow();
+  }
+
+  private List<String> files(String prefix, int count) throws IOException
+  {
+    List<String> files = new ArrayList<>(count);
+    for(int i = 0; i < count; i++)
+      files.add(Files.createFile(dir.resolve(prefix + i)).toString());
+    return files;
+  }
+
+  /** Runs every task at the same time and rethrows the first failure. */
+  private void runTogether(List<Runnable> tasks) throws Exception
+  {
+    CountDownLatch go = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<>();
+    for(Runnable task : tasks)
+      futures.add(pool.submit(() -> {
+        go.await();
+        task.run();
+        return null;
+      }));
+    go.countDown();
+    for(Future<?> future : futures)
+      future.get(60, TimeUnit.SECONDS);
+  }
+
+  /** Checks one snapshot: no duplicates, only known tracks, index in range. */
+  private static void assertConsistent(ConcurrentPlaylist playlist, Set<String> known)
+  {
+    List<String> tracks = playlist.trackList();
+    assertEquals(tracks.size(), new HashSet<>(tracks).size(), "duplicate track");
+    assertTrue(known.containsAll(tracks), "unknown track");
+    int index = playlist.index();
+    //only compare with the tracks if nobody changed them in between.
+    if(playlist.trackList() == tracks)
+      assertTrue(index >= 0 && (tracks.isEmpty() ? index == 0 : index < tracks.size()), "index " + index + " of " + tracks.size());
+  }
+
+  @Test
+  void concurrentNextHandsOutEveryTrackEvenly() throws Exception
+  {
+    final int rounds = 50;
+    List<String> tracks = files("t", TRACKS);
+    ConcurrentPlaylist playlist = new ConcurrentPlaylist(tracks);
+    Map<String, AtomicInteger> played = new ConcurrentHashMap<>();
+
+    List<Runnable> players = new ArrayList<>();
+    for(int t = 0; t < THREADS; t++)
+      players.add(() -> {
+        for(int i = 0; i < TRACKS * rounds / THREADS; i++)
+          played.computeIfAbsent(playlist.next(), k -> new AtomicInteger()).incrementAndGet();
+      });
+    runTogether(players);
+
+    //no next() was lost or handed the same position twice.
+    assertEquals(new HashSet<>(tracks), played.keySet());
+    for(Map.Entry<String, AtomicInteger> entry : played.entrySet())
+      assertEquals(rounds, entry.getValue().get(), entry.getKey());
+  }
+
+  @Test
+  void concurrentAddAllLosesNothing() throws Exception
+  {
+    ConcurrentPlaylist playlist = new ConcurrentPlaylist();
+    Set<String> all = ConcurrentHashMap.newKeySet();
+    List<Runnable> writers = new ArrayList<>();
+    for(int t = 0; t < THREADS; t++)
+    {
+      List<String> mine = files("w" + t + "-", TRACKS / THREADS * 4);
+      all.addAll(mine);
+      writers.add(() -> {
+        //in small batches, and overlapping with the other writers' shuffles.
+        for(int i = 0; i < mine.size(); i += 10)
+        {
+          playlist.addAll(mine.subList(i, Math.min(mine.size(), i + 10)));
+          if(i % 40 == 0)
+            playlist.shuffle();
+        }
+      });
+    }
+    writers.add(() -> {
+      for(int i = 0; i < 2_000; i++)
+        playlist.next();
+    });
+    runTogether(writers);
+
+    assertEquals(all.size(), playlist.size());
+    assertEquals(all, new HashSet<>(playlist.trackList()));
+    assertConsistent(playlist, all);
+  }
+
+  @Test
+  void mixedNextSyncShuffleAddAllStayConsistent() throws Exception
+  {
+    List<String> base = files("b", TRACKS);
+    List<String> extra = files("e", TRACKS);
+    Set<String> known = new HashSet<>(base);
+    known.addAll(extra);
+    Set<String> everything = new HashSet<>(known);
+
+    ConcurrentPlaylist playlist = new ConcurrentPlaylist(base);
+    AtomicBoolean running = new AtomicBoolean(true);
+    List<Runnable> tasks = new ArrayList<>();
+
+    //players.
+    for(int t = 0; t < 3; t++)
+      tasks.add(() -> {
+        while(running.get())
+        {
+          String next = playlist.next();
+          assertTrue(next.isEmpty() || known.contains(next), "played " + next);
+        }
+      });
+    //a reader checking snapshots while everything moves.
+    tasks.add(() -> {
+      while(running.get())
+        assertConsistent(playlist, known);
+    });
+    //writers: syncs to different sets, shuffles and adds.
+    tasks.add(() -> {
+      for(int i = 0; i < 300; i++)
+        playlist.sync(i % 2 == 0 ? new HashSet<>(base) : everything);
+    });
+    tasks.add(() -> {
+      for(int i = 0; i < 300; i++)
+        playlist.shuffle();
+    });
+    tasks.add(() -> {
+      for(int i = 0; i < 300; i++)
+        playlist.addAll(extra.subList(i % TRACKS, Math.min(TRACKS, i % TRACKS + 20)));
+    });
+    tasks.add(() -> {
+      for(int i = 0; i < 300; i++)
+        playlist.skipTo(i);
+    });
+
+    //writers finish on their own, then stop the players.
+    List<Runnable> bounded = new ArrayList<>();
+    CountDownLatch writersDone = new CountDownLatch(4);
+    for(int i = 0; i < tasks.size(); i++)
+    {
+      Runnable task = tasks.get(i);
+      if(i < 4)
+        bounded.add(task);
+      else
+        bounded.add(() -> {
+          try
+          {
+            task.run();
+          }
+          finally
+          {
+            writersDone.countDown();
+            if(writersDone.getCount() == 0)
+              running.set(false);
+          }
+        });
+    }
+    runTogether(bounded);
+
+    assertConsistent(playlist, known);
+    //the last word: everything is in, exactly once.
+    playlist.sync(everything);
+    assertEquals(everything, new HashSet<>(playlist.trackList()));
+    assertEquals(everything.size(), playlist.size());
+    assertConsistent(playlist, known);
+  }
+}
@@ -0,0 +1,109 @@
+package com.kusa.playlist;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Rough timings of the playlist operations that used to be linear per
+ * track (quadratic overall) at 10k and 100k tracks.
+ *
+ * the limits are loose, they catch a quadratic regression (minutes) not
+ * a slow machine. timings are printed for comparing runs.
+ */
+class IndexedPlaylistBenchmarkTest
+{
+  private static final int[] SIZES = { 10_000, 100_000 };
+  //tracks added by a sync, these have to exist on disk.
+  private static final int ADDED = 1_000;
+  private static final long LIMIT_MILLIS = 5_000L;
+
+  @TempDir
+  Path dir;
+
+  private static List<String> tracks(Path dir, String prefix, int count)
+  {
+    List<String> tracks = new ArrayList<>(count);
+    for(int i = 0; i < count; i++)
+      tracks.add(dir.resolve(prefix + i).toString());
+    return tracks;
+  }
+
+  private static long millisSince(long start) { return (System.nanoTime() - start) / 1_000_000L; }
+
+  private static void report(String what, int size, long millis)
+  {
+    System.out.println(String.format("[IndexedPlaylistBenchmark] %-28s %,7d tracks %,6dms", what, size, millis));
+    assertTrue(millis < LIMIT_MILLIS, what + " took " + millis + "ms");
+  }
+
+  @Test
+  void syncDiffMerge() throws IOException
+  {
+    List<String> added = tracks(dir, "new", ADDED);
+    for(String mrl : added)
+      Files.createFile(Path.of(mrl));
+
+    for(int size : SIZES)
+    {
+      List<String> tracks = tracks(dir, "t" + size + "-", size);
+      IndexedPlaylist playlist = new IndexedPlaylist(tracks);
+
+      //drive removed 1% of the tracks and added ADDED new ones.
+      Set<String> wanted = new HashSet<>(tracks.subList(size / 100, size));
+      wanted.addAll(added);
+      long start = System.nanoTime();
+      playlist.sync(wanted);
+      report("sync (1% removed, 1k added)", size, millisSince(start));
+      assertEquals(size - size / 100 + ADDED, playlist.size());
+    }
+  }
+
+  @Test
+  void containsAndRemove()
+  {
+    for(int size : SIZES)
+    {
+      List<String> tracks = tracks(dir, "t", size);
+      IndexedPlaylist playlist = new IndexedPlaylist(tracks);
+
+      long start = System.nanoTime();
+      for(String mrl : tracks)
+        assertTrue(playlist.contains(mrl));
+      report("contains every track", size, millisSince(start));
+
+      start = System.nanoTime();
+      for(int i = 0; i < 1_000; i++)
+        playlist.remove(tracks.get(i * (size / 1_000)));
+      report("remove 1k tracks", size, millisSince(start));
+      assertEquals(size - 1_000, playlist.size());
+    }
+  }
+
+  @Test
+  void skipMissingRun() throws IOException
+  {
+    for(int size : SIZES)
+    {
+      //every track is gone but the last one (a mass delete in drive).
+      List<String> tracks = tracks(dir, "gone" + size + "-", size);
+      String last = Files.createFile(dir.resolve("last" + size)).toString();
+      tracks.add(last);
+      IndexedPlaylist playlist = new IndexedPlaylist(tracks);
+
+      long start = System.nanoTime();
+      assertEquals(last, playlist.next());
+      report("next over a missing run", size, millisSince(start));
+      assertEquals(1, playlist.size());
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package com.kusa.playlist;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexedPlaylistTest
+{
+  @TempDir
+  Path dir;
+
+  /** Returns the path of a file that exists. */
+  private String file(String name) throws IOException
+  {
+    return Files.write(dir.resolve(name), new byte[1]).toString();
+  }
+
+  /** Returns the path of a file that doesn't exist. */
+  private String gone(String name)
+  {
+    return dir.resolve(name).toString();
+  }
+
+  private static Set<String> set(String... mrls) { return new HashSet<>(Arrays.asList(mrls)); }
+
+  private static void assertPositions(IndexedPlaylist playlist)
+  {
+    List<String> tracks = playlist.trackList();
+    for(int i = 0; i < tracks.size(); i++)
+      assertEquals(i, playlist.positionOf(tracks.get(i)), tracks.get(i));
+  }
+
+  @Test
+  void nextLoopsInOrder() throws IOException
+  {
+    String a = file("a"), b = file("b"), c = file("c");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, b, c));
+    assertEquals(a, playlist.next());
+    assertEquals(b, playlist.next());
+    assertEquals(c, playlist.next());
+    assertEquals(a, playlist.next());
+  }
+
+  @Test
+  void duplicatesAreDropped() throws IOException
+  {
+    String a = file("a"), b = file("b");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, b, a));
+    assertEquals(Arrays.asList(a, b), playlist.trackList());
+    assertFalse(playlist.add(a));
+  }
+
+  @Test
+  void nextSkipsARunOfMissingTracks() throws IOException
+  {
+    String a = file("a"), b = file("b"), c = file("c");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, gone("x1"), gone("x2"), gone("x3"), b, gone("x4"), c));
+
+    assertEquals(a, playlist.next());
+    assertEquals(b, playlist.next());
+    assertEquals(Arrays.asList(a, b, gone("x4"), c), playlist.trackList());
+    assertEquals(c, playlist.next());
+    assertEquals(Arrays.asList(a, b, c), playlist.trackList());
+    assertEquals(a, playlist.next());
+    assertPositions(playlist);
+  }
+
+  @Test
+  void missingRunWrapsAround() throws IOException
+  {
+    String a = file("a"), b = file("b");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(gone("x1"), a, b, gone("x2"), gone("x3")));
+    playlist.next();
+    assertEquals(b, playlist.next());
+    //the run at the end and the one at the start go together.
+    assertEquals(a, playlist.next());
+    assertEquals(Arrays.asList(a, b), playlist.trackList());
+    assertPositions(playlist);
+  }
+
+  @Test
+  void allMissingEmptiesThePlaylist()
+  {
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(gone("x1"), gone("x2"), gone("x3")));
+    assertEquals("", playlist.next());
+    assertTrue(playlist.isEmpty());
+    assertEquals(-1, playlist.positionOf(gone("x1")));
+  }
+
+  @Test
+  void retainCompactsAndKeepsTheUpcomingTrack() throws IOException
+  {
+    List<String> tracks = new ArrayList<>();
+    for(int i = 0; i < 10; i++)
+      tracks.add(file("t" + i));
+    IndexedPlaylist playlist = new IndexedPlaylist(tracks);
+    for(int i = 0; i < 5; i++)
+      playlist.next();
+
+    //drop every other track, t5 (the upcoming one) stays.
+    Set<String> keep = new HashSet<>();
+    for(int i = 1; i < 10; i += 2)
+      keep.add(tracks.get(i));
+    keep.add(tracks.get(5));
+    assertTrue(playlist.sync(keep));
+
+    assertEquals(5, playlist.size());
+    assertEquals(tracks.get(5), playlist.next());
+    assertEquals(tracks.get(7), playlist.next());
+    assertFalse(playlist.contains(tracks.get(4)));
+    assertPositions(playlist);
+  }
+
+  @Test
+  void syncOnlyAppliesTheDifference() throws IOException
+  {
+    String a = file("a"), b = file("b"), c = file("c"), d = file("d"), e = file("e");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, b, c, d));
+    playlist.next();
+    playlist.next();
+
+    assertTrue(playlist.sync(set(a, c, d, e)));
+    assertEquals(Arrays.asList(a, c, d, e), playlist.trackList());
+    assertEquals(c, playlist.next());
+    assertPositions(playlist);
+
+    assertFalse(playlist.sync(set(a, c, d, e)), "nothing changed");
+  }
+
+  @Test
+  void syncRemovingTheUpcomingTrackMovesToTheOneAfter() throws IOException
+  {
+    String a = file("a"), b = file("b"), c = file("c"), d = file("d");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, b, c, d));
+    playlist.next();
+    playlist.next();
+
+    playlist.sync(set(a, b, d));
+    assertEquals(d, playlist.next());
+  }
+
+  @Test
+  void syncSkipsFilesThatDontExist() throws IOException
+  {
+    String a = file("a");
+    IndexedPlaylist playlist = new IndexedPlaylist();
+    playlist.sync(set(a, gone("x")));
+    assertEquals(Arrays.asList(a), playlist.trackList());
+  }
+
+  @Test
+  void removeKeepsTheUpcomingTrack() throws IOException
+  {
+    String a = file("a"), b = file("b"), c = file("c");
+    IndexedPlaylist playlist = new IndexedPlaylist(Arrays.asList(a, b, c));
+    playlist.next();
+    playlist.next();
+
+    assertTrue(playlist.remove(a));
+    assertEquals(c, playlist.next());
+    assertFalse(playlist.remove(gone("x")));
+    assertPositions(playlist);
+  }
+
+  @Test
+  void shuffleKeepsEveryTrackIndexed() throws IOException
+  {
+    List<String> tracks = new ArrayList<>();
+    for(int i = 0; i < 50; i++)
+      tracks.add(file("t" + i));
+    IndexedPlaylist playlist = new IndexedPlaylist(tracks);
+    playlist.shuffle();
+    assertEquals(new HashSet<>(tracks), new HashSet<>(playlist.trackList()));
+    assertPositions(playlist);
+  }
+}
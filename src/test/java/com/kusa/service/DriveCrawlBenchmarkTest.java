@@ -0,0 +1,155 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.kusa.util.PathedFile;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Times a crawl of a generated drive tree (4 levels, 155 folders, 468
+ * files) served by a FakeDrive that waits LATENCY_MILLIS on every
+ * request, against the old one folder at a time walk.
+ *
+ * the limit is loose (the old walk's request count times the latency),
+ * the timings and request counts are printed for comparing runs.
+ */
+class DriveCrawlBenchmarkTest
+{
+  private static final long LATENCY_MILLIS = 30L;
+  private static final int FANOUT = 5;
+  private static final int DEPTH = 3;
+  private static final int FILES_PER_FOLDER = 3;
+
+  @TempDir
+  Path dir;
+
+  private FakeDrive drive;
+  private int folders;
+  private int files;
+
+  @BeforeEach
+  void start() throws IOException
+  {
+    drive = new FakeDrive();
+    folders = 0;
+    files = 0;
+    generate(FakeDrive.ROOT_ID, "f", 0);
+  }
+
+  @AfterEach
+  void stop() { drive.close(); }
+
+  /** Builds FANOUT folders per folder DEPTH deep, every folder gets a few files. */
+  private void generate(String parent, String name, int depth)
+  {
+    for(int i = 0; i < FILES_PER_FOLDER; i++, files++)
+      drive.file(name + "-file" + i, "clip" + i + ".mp4", "video/mp4", parent, new byte[] {(byte) i});
+    if(depth == DEPTH)
+      return;
+    for(int i = 0; i < FANOUT; i++, folders++)
+      generate(drive.folder(name + i, "folder" + i, parent), name + i, depth + 1);
+  }
+
+  /** What getFileList used to do, one files.list per folder from a queue. */
+  private static List<PathedFile> oldCrawl(Drive client) throws IOException
+  {
+    File root = new File().setId(FakeDrive.ROOT_ID);
+    Queue<PathedFile> queue = new LinkedList<>(List.of(new PathedFile(root, "")));
+    List<PathedFile> found = new ArrayList<>();
+    while(!queue.isEmpty())
+    {
+      PathedFile pf = queue.poll();
+      String query = String.format("'%s' in parents and trashed = false", pf.file().getId());
+      String pageToken = null;
+      do{
+        FileList result = client.files().list().setQ(query).setFields("nextPageToken, files(id, name, parents, mimeType)")
+          .setPageToken(pageToken).execute();
+        pageToken = result.getNextPageToken();
+        for(File file : result.getFiles())
+        {
+          if(file.getMimeType().equals(FakeDrive.FOLDER))
+            queue.add(new PathedFile(file, pf.path() + file.getName() + "/"));
+          else
+            found.add(new PathedFile(file, pf.path()));
+        }
+      } while(pageToken != null);
+    }
+    return found;
+  }
+
+  private static Set<String> paths(List<PathedFile> files)
+  {
+    Set<String> paths = new TreeSet<>();
+    for(PathedFile pf : files)
+      paths.add(pf.path() + pf.file().getName() + "#" + pf.file().getId());
+    return paths;
+  }
+
+  @Test
+  void crawlAGeneratedTree() throws IOException
+  {
+    MediaJanitor janitor = new MediaJanitor(MediaJanitor.MirrorMode.OFF, 0L, dir.resolve("quarantine").toString() + "/", dir.resolve("evicted").toString());
+    GDriveService gds = new GDriveService(drive.url(), dir.resolve("drive.sync").toString(), janitor);
+    assertTrue(gds.isValid());
+    drive.latency(LATENCY_MILLIS);
+
+    Drive client = new Drive.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance(), null).setRootUrl(drive.url())
+      .setApplicationName("jinzo-benchmark").build();
+    int before = drive.listRequests.get();
+    long start = System.nanoTime();
+    List<PathedFile> old = oldCrawl(client);
+    long oldMillis = (System.nanoTime() - start) / 1_000_000L;
+    int oldRequests = drive.listRequests.get() - before;
+
+    before = drive.listRequests.get();
+    start = System.nanoTime();
+    List<PathedFile> crawled = gds.getFileList();
+    long crawlMillis = (System.nanoTime() - start) / 1_000_000L;
+    int crawlRequests = drive.listRequests.get() - before;
+
+    System.out.println(String.format("[DriveCrawlBenchmark] %d folders %d files, %dms latency: old walk %d requests %,dms, crawl %d requests %,dms",
+          folders, files, LATENCY_MILLIS, oldRequests, oldMillis, crawlRequests, crawlMillis));
+    assertEquals(files, old.size());
+    assertEquals(paths(old), paths(crawled), "the crawl should find the same files");
+    assertTrue(crawlRequests < oldRequests, "crawl made " + crawlRequests + " requests");
+    assertTrue(crawlMillis < oldRequests * LATENCY_MILLIS, "crawl took " + crawlMillis + "ms");
+  }
+
+  @Test
+  void crawlANestedFolder()
+  {
+    MediaJanitor janitor = new MediaJanitor(MediaJanitor.MirrorMode.OFF, 0L, dir.resolve("quarantine").toString() + "/", dir.resolve("evicted").toString());
+    GDriveService gds = new GDriveService(drive.url(), dir.resolve("drive.sync").toString(), janitor);
+    assertTrue(gds.isValid());
+    drive.latency(LATENCY_MILLIS);
+
+    int before = drive.listRequests.get();
+    long start = System.nanoTime();
+    List<PathedFile> crawled = gds.getFileList("folder2/folder0/", true);
+    long crawlMillis = (System.nanoTime() - start) / 1_000_000L;
+
+    System.out.println(String.format("[DriveCrawlBenchmark] nested folder2/folder0/: %d files, %d requests %,dms",
+          crawled.size(), drive.listRequests.get() - before, crawlMillis));
+    //the folder and its FANOUT children (the last level, no folders in them).
+    assertEquals(FILES_PER_FOLDER * (1 + FANOUT), crawled.size());
+    for(PathedFile pf : crawled)
+      assertTrue(pf.path().startsWith("folder2/folder0/"), pf.path());
+  }
+}
@@ -0,0 +1,336 @@
+package com.kusa.service;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of the drive v3 api, served from a local http server.
+ *
+ * GDriveService talks to it through its driveRootUrl (no credentials).
+ * the app folder is "JINZO" with id ROOT_ID, tests add folders and files
+ * under it and queue what the changes feed returns. every request can be
+ * delayed to simulate the network. media downloads honor "Range: bytes=N-"
+ * (206 with a Content-Range) like drive does, so resumes can be tested.
+ */
+class FakeDrive implements AutoCloseable
+{
+  static final String ROOT_ID = "jinzo-root";
+  static final String FOLDER = "application/vnd.google-apps.folder";
+  private static final int PAGE_SIZE = 100;
+  private static final Pattern PARENT = Pattern.compile("'([^']+)' in parents");
+  private static final Pattern NAME = Pattern.compile("name = '([^']+)'");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  private final Gson gson = new Gson();
+  private final HttpServer server;
+  private final ExecutorService threads;
+  private final Map<String, Item> items = new ConcurrentHashMap<>();
+  private final Map<String, Object> changes = new ConcurrentHashMap<>();
+  private final Map<String, Integer> rejected = new ConcurrentHashMap<>();
+  private volatile String startPageToken = "start-token";
+  private volatile long latencyMillis;
+
+  //what was asked for.
+  final List<String> changesRequested = new CopyOnWriteArrayList<>();
+  final AtomicInteger listRequests = new AtomicInteger();
+  final AtomicInteger mediaRequests = new AtomicInteger();
+  //Range headers of media requests ("" when there was none).
+  final List<String> mediaRanges = new CopyOnWriteArrayList<>();
+  final AtomicInteger requests = new AtomicInteger();
+
+  FakeDrive() throws IOException
+  {
+    items.put(ROOT_ID, new Item(ROOT_ID, "JINZO", FOLDER, null, null));
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    threads = Executors.newCachedThreadPool();
+    server.setExecutor(threads);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /** Returns the root url to give GDriveService. */
+  String url() { return "http://127.0.0.1:" + server.getAddress().getPort() + "/"; }
+
+  /** Delays every response (simulated round trip). */
+  void latency(long millis) { latencyMillis = millis; }
+
+  String folder(String id, String name, String parent)
+  {
+    items.put(id, new Item(id, name, FOLDER, parent, null));
+    return id;
+  }
+
+  String file(String id, String name, String mimeType, String parent, byte[] content)
+  {
+    items.put(id, new Item(id, name, mimeType, parent, content));
+    return id;
+  }
+
+  void startPageToken(String token) { startPageToken = token; }
+
+  /** Queues a changes page: what a changes.list with this token returns. */
+  void changes(String pageToken, String newStartPageToken, List<Map<String, Object>> list)
+  {
+    Map<String, Object> page = new LinkedHashMap<>();
+    page.put("changes", list);
+    page.put("newStartPageToken", newStartPageToken);
+    changes.put(pageToken, page);
+  }
+
+  /** Makes changes.list fail for a token (410 is an expired token). */
+  void reject(String pageToken, int status) { rejected.put(pageToken, status); }
+
+  /** A change entry for a file that was removed. */
+  static Map<String, Object> removed(String fileId)
+  {
+    Map<String, Object> change = new LinkedHashMap<>();
+    change.put("fileId", fileId);
+    change.put("removed", true);
+    return change;
+  }
+
+  /** A change entry for a file that is new or was modified. */
+  Map<String, Object> changed(String fileId)
+  {
+    Map<String, Object> change = new LinkedHashMap<>();
+    change.put("fileId", fileId);
+    change.put("removed", false);
+    change.put("file", items.get(fileId).json());
+    return change;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    try
+    {
+      requests.incrementAndGet();
+      if(latencyMillis > 0)
+        Thread.sleep(latencyMillis);
+
+      URI uri = exchange.getRequestURI();
+      String path = uri.getPath();
+      Map<String, String> query = query(uri.getRawQuery());
+      if(path.equals("/drive/v3/changes/startPageToken"))
+        json(exchange, 200, Map.of("startPageToken", startPageToken));
+      else if(path.equals("/drive/v3/changes"))
+        changes(exchange, query.get("pageToken"));
+      else if(path.equals("/drive/v3/files"))
+        list(exchange, query);
+      else if(path.startsWith("/drive/v3/files/"))
+        get(exchange, path.substring("/drive/v3/files/".length()), query);
+      else
+        error(exchange, 404);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      error(exchange, 500);
+    }
+    finally
+    {
+      exchange.close();
+    }
+  }
+
+  private void changes(HttpExchange exchange, String pageToken) throws IOException
+  {
+    changesRequested.add(pageToken);
+    Integer status = rejected.get(pageToken);
+    if(status != null)
+    {
+      error(exchange, status);
+      return;
+    }
+    Object page = changes.get(pageToken);
+    json(exchange, 200, page != null ? page : Map.of("changes", List.of(), "newStartPageToken", pageToken));
+  }
+
+  private void list(HttpExchange exchange, Map<String, String> query) throws IOException
+  {
+    listRequests.incrementAndGet();
+    String q = query.getOrDefault("q", "");
+    List<String> parents = new ArrayList<>();
+    Matcher parent = PARENT.matcher(q);
+    while(parent.find())
+      parents.add(parent.group(1));
+    Matcher name = NAME.matcher(q);
+    String wantedName = name.find() ? name.group(1) : null;
+
+    List<Object> found = new ArrayList<>();
+    for(Item item : items.values())
+    {
+      if(parents.isEmpty() ? !item.id.equals(ROOT_ID) : !parents.contains(item.parent))
+        continue;
+      if(wantedName != null && !wantedName.equals(item.name))
+        continue;
+      found.add(item.json());
+    }
+
+    int offset = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+    Map<String, Object> page = new LinkedHashMap<>();
+    page.put("files", found.subList(offset, Math.min(found.size(), offset + PAGE_SIZE)));
+    if(offset + PAGE_SIZE < found.size())
+      page.put("nextPageToken", Integer.toString(offset + PAGE_SIZE));
+    json(exchange, 200, page);
+  }
+
+  private void get(HttpExchange exchange, String id, Map<String, String> query) throws IOException
+  {
+    Item item = items.get(id);
+    if(item == null)
+    {
+      error(exchange, 404);
+      return;
+    }
+    if(!"media".equals(query.get("alt")))
+    {
+      json(exchange, 200, item.json());
+      return;
+    }
+    mediaRequests.incrementAndGet();
+    byte[] content = item.content;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    mediaRanges.add(range == null ? "" : range);
+    int from = 0;
+    int to = content.length - 1;
+    int status = 200;
+    if(range != null)
+    {
+      Matcher bytes = RANGE.matcher(range);
+      if(!bytes.matches() || Integer.parseInt(bytes.group(1)) >= content.length)
+      {
+        exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+        error(exchange, 416);
+        return;
+      }
+      from = Integer.parseInt(bytes.group(1));
+      if(!bytes.group(2).isEmpty())
+        to = Math.min(to, Integer.parseInt(bytes.group(2)));
+      status = 206;
+      exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", from, to, content.length));
+    }
+    int length = to - from + 1;
+    exchange.getResponseHeaders().set("Content-Type", item.mimeType);
+    exchange.sendResponseHeaders(status, length <= 0 ? -1 : length);
+    try(OutputStream out = exchange.getResponseBody())
+    {
+      if(length > 0)
+        out.write(content, from, length);
+    }
+  }
+
+  private void json(HttpExchange exchange, int status, Object body) throws IOException
+  {
+    byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try(OutputStream out = exchange.getResponseBody())
+    {
+      out.write(bytes);
+    }
+  }
+
+  private void error(HttpExchange exchange, int status) throws IOException
+  {
+    Map<String, Object> error = new LinkedHashMap<>();
+    error.put("code", status);
+    error.put("message", "fake drive says " + status);
+    json(exchange, status, Map.of("error", error));
+  }
+
+  private static Map<String, String> query(String raw)
+  {
+    Map<String, String> query = new HashMap<>();
+    if(raw == null)
+      return query;
+    for(String pair : raw.split("&"))
+    {
+      int eq = pair.indexOf('=');
+      if(eq > 0)
+        query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+    }
+    return query;
+  }
+
+  @Override
+  public void close()
+  {
+    server.stop(0);
+    threads.shutdownNow();
+  }
+
+  /**
+   * A file or folder in the fake drive.
+   */
+  private static class Item
+  {
+    final String id;
+    final String name;
+    final String mimeType;
+    final String parent;
+    final byte[] content;
+
+    Item(String id, String name, String mimeType, String parent, byte[] content)
+    {
+      this.id = id;
+      this.name = name;
+      this.mimeType = mimeType;
+      this.parent = parent;
+      this.content = content;
+    }
+
+    Map<String, Object> json()
+    {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("id", id);
+      json.put("name", name);
+      json.put("mimeType", mimeType);
+      if(parent != null)
+        json.put("parents", List.of(parent));
+      json.put("trashed", false);
+      json.put("modifiedTime", "2024-01-01T00:00:00.000Z");
+      if(content != null)
+      {
+        //int64 values are strings in drive's json.
+        json.put("size", Long.toString(content.length));
+        json.put("md5Checksum", md5(content));
+      }
+      return json;
+    }
+
+    private static String md5(byte[] content)
+    {
+      try
+      {
+        StringBuilder hex = new StringBuilder();
+        for(byte b : MessageDigest.getInstance("MD5").digest(content))
+          hex.append(String.format("%02x", b));
+        return hex.toString();
+      }
+      catch(Exception e)
+      {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kusa.Config;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs syncs against canned changes.list / getStartPageToken answers
+ * from a FakeDrive (see driveRootUrl).
+ */
+class GDriveServiceTest
+{
+  @TempDir
+  Path dir;
+
+  private FakeDrive drive;
+  private String folderName;
+  private String statePath;
+  private File localFolder;
+
+  @BeforeEach
+  void start() throws IOException
+  {
+    drive = new FakeDrive();
+    //every test syncs its own folder, the download path is shared.
+    folderName = "sync-test-" + System.nanoTime();
+    drive.folder("folder-1", folderName, FakeDrive.ROOT_ID);
+    statePath = dir.resolve("drive.sync").toString();
+    localFolder = new File(Config.getProperty("downloadPath") + folderName);
+  }
+
+  @AfterEach
+  void stop() throws IOException
+  {
+    drive.close();
+    FileUtils.deleteDirectory(localFolder);
+  }
+
+  private GDriveService service()
+  {
+    MediaJanitor janitor = new MediaJanitor(MediaJanitor.MirrorMode.DELETE, 0L, dir.resolve("quarantine").toString() + "/", dir.resolve("evicted").toString());
+    return new GDriveService(drive.url(), statePath, janitor);
+  }
+
+  /** Saves a sync state like the one a previous full crawl leaves behind. */
+  private void savedState(String pageToken)
+  {
+    DriveSyncState state = new DriveSyncState(statePath);
+    state.putFolder(FakeDrive.ROOT_ID, "");
+    state.putFolder("folder-1", folderName + "/");
+    state.setPageToken(pageToken);
+    assertTrue(state.save());
+  }
+
+  private static byte[] bytes(String text) { return text.getBytes(StandardCharsets.UTF_8); }
+
+  @Test
+  void fullCrawlSavesTheStartPageToken() throws IOException
+  {
+    drive.startPageToken("token-1");
+    drive.file("f-1", "a.mp4", "video/mp4", "folder-1", bytes("first video"));
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    assertTrue(gds.downloadMedia());
+
+    assertEquals("token-1", new DriveSyncState(statePath).getPageToken());
+    assertTrue(drive.listRequests.get() > 0, "no token yet, it should have crawled");
+    assertArrayEquals(bytes("first video"), Files.readAllBytes(new File(localFolder, "a.mp4").toPath()));
+  }
+
+  @Test
+  void changesFeedAppliesDeletesAndSavesTheNewToken() throws IOException
+  {
+    //a file drive gave us earlier, now removed in drive.
+    File old = new File(localFolder, "old.mp4");
+    localFolder.mkdirs();
+    Files.write(old.toPath(), bytes("old video"));
+    LocalService.manifest().record(old, "f-old", LocalService.md5(old), "video/mp4");
+    //a file someone copied in by hand, no drive id.
+    File own = new File(localFolder, "own.mp4");
+    Files.write(own.toPath(), bytes("hand copied"));
+
+    drive.file("f-new", "new.mp4", "video/mp4", "folder-1", bytes("new video"));
+    drive.changes("token-1", "token-2", List.of(FakeDrive.removed("f-old"), drive.changed("f-new")));
+    savedState("token-1");
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    gds.downloadMedia();
+
+    assertEquals(List.of("token-1"), drive.changesRequested);
+    assertEquals("token-2", new DriveSyncState(statePath).getPageToken());
+    assertFalse(old.exists(), "removed in drive, should be deleted");
+    assertTrue(LocalService.manifest().pathsForDriveId("f-old").isEmpty());
+    assertTrue(own.exists(), "not from drive, should be left alone");
+    assertArrayEquals(bytes("new video"), Files.readAllBytes(new File(localFolder, "new.mp4").toPath()));
+  }
+
+  @Test
+  void failedDownloadKeepsTheOldToken() throws IOException
+  {
+    //drive says there is a file but serves no content for it (md5 won't match).
+    drive.file("f-new", "new.mp4", "video/mp4", "folder-1", bytes("new video"));
+    java.util.Map<String, Object> change = drive.changed("f-new");
+    @SuppressWarnings("unchecked")
+    java.util.Map<String, Object> file = (java.util.Map<String, Object>) change.get("file");
+    file.put("md5Checksum", "00000000000000000000000000000000");
+    drive.changes("token-1", "token-2", List.of(change));
+    savedState("token-1");
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    gds.downloadMedia();
+
+    assertEquals("token-1", new DriveSyncState(statePath).getPageToken());
+  }
+
+  @Test
+  void removedFolderIsStillMirroredAfterAFailedPass() throws IOException
+  {
+    //a sub folder drive gave us earlier, it gets removed in drive.
+    File sub = new File(localFolder, "sub");
+    sub.mkdirs();
+    File old = new File(sub, "old.mp4");
+    Files.write(old.toPath(), bytes("old video"));
+    LocalService.manifest().record(old, "f-old", LocalService.md5(old), "video/mp4");
+    savedState("token-1");
+    DriveSyncState state = new DriveSyncState(statePath);
+    state.putFolder("folder-2", folderName + "/sub/");
+    assertTrue(state.save());
+
+    //same pass, a new file whose download fails (md5 won't match).
+    drive.file("f-new", "new.mp4", "video/mp4", "folder-1", bytes("new video"));
+    java.util.Map<String, Object> broken = drive.changed("f-new");
+    @SuppressWarnings("unchecked")
+    java.util.Map<String, Object> file = (java.util.Map<String, Object>) broken.get("file");
+    file.put("md5Checksum", "00000000000000000000000000000000");
+    drive.changes("token-1", "token-2", List.of(FakeDrive.removed("folder-2"), broken));
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    gds.downloadMedia();
+    assertEquals("token-1", new DriveSyncState(statePath).getPageToken());
+    assertTrue(old.exists(), "the pass failed, nothing should be mirrored yet");
+
+    //drive serves the file right now, the retry reads the same changes again.
+    drive.changes("token-1", "token-2", List.of(FakeDrive.removed("folder-2"), drive.changed("f-new")));
+    gds.downloadMedia();
+
+    assertEquals("token-2", new DriveSyncState(statePath).getPageToken());
+    assertFalse(old.exists(), "the removed folder's files should be mirrored on the retry");
+    assertEquals(null, new DriveSyncState(statePath).folderPath("folder-2"));
+    assertArrayEquals(bytes("new video"), Files.readAllBytes(new File(localFolder, "new.mp4").toPath()));
+  }
+
+  @Test
+  void sameNameTwiceInAFolderIsDownloadedOnce() throws IOException
+  {
+    drive.file("f-a", "twice.mp4", "video/mp4", "folder-1", bytes("first upload"));
+    drive.file("f-b", "twice.mp4", "video/mp4", "folder-1", bytes("second upload, longer"));
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    assertTrue(gds.downloadMedia());
+
+    assertEquals(1, drive.mediaRequests.get(), "both would write the same partial file");
+    //same modified time, the smaller id wins.
+    assertArrayEquals(bytes("first upload"), Files.readAllBytes(new File(localFolder, "twice.mp4").toPath()));
+    assertFalse(LocalService.partialFile(localFolder.getPath() + "/", "twice.mp4").exists());
+    assertEquals("start-token", new DriveSyncState(statePath).getPageToken(), "the sync should count as complete");
+  }
+
+  @Test
+  void partialDownloadIsResumed() throws IOException
+  {
+    byte[] content = bytes("a video that was half downloaded when the power went out");
+    drive.file("f-1", "a.mp4", "video/mp4", "folder-1", content);
+    //what the last sync got before it died.
+    localFolder.mkdirs();
+    File partial = LocalService.partialFile(localFolder.getPath() + "/", "a.mp4");
+    Files.write(partial.toPath(), java.util.Arrays.copyOf(content, 20));
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    assertTrue(gds.downloadMedia());
+
+    assertEquals(1, drive.mediaRequests.get());
+    assertTrue(drive.mediaRanges.get(0).startsWith("bytes=20-"), drive.mediaRanges.get(0));
+    assertArrayEquals(content, Files.readAllBytes(new File(localFolder, "a.mp4").toPath()));
+    assertFalse(partial.exists(), "the partial file should be published");
+  }
+
+  @Test
+  void expiredTokenFallsBackToACrawl() throws IOException
+  {
+    drive.reject("token-old", 410);
+    drive.startPageToken("token-fresh");
+    drive.file("f-1", "a.mp4", "video/mp4", "folder-1", bytes("first video"));
+    savedState("token-old");
+
+    GDriveService gds = service();
+    assertTrue(gds.isValid());
+    gds.downloadMedia();
+
+    assertEquals("token-fresh", new DriveSyncState(statePath).getPageToken());
+    assertTrue(new File(localFolder, "a.mp4").exists());
+  }
+}
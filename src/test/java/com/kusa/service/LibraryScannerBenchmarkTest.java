@@ -0,0 +1,122 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Times a scan of a generated 50k file tree (500 folders, a tenth of the
+ * files junk) against the old single threaded File.listFiles walk.
+ *
+ * the limit is loose, it catches a scan that got pathologically slow,
+ * the timings are printed for comparing runs.
+ */
+class LibraryScannerBenchmarkTest
+{
+  private static final int FOLDERS = 500;
+  private static final int FILES_PER_FOLDER = 100;
+  private static final long LIMIT_MILLIS = 60_000L;
+
+  private static final byte[] MP4 = head(0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm');
+  private static final byte[] JPEG = head(0xFF, 0xD8, 0xFF, 0xE0);
+  private static final byte[] JUNK = head('j', 'u', 'n', 'k');
+
+  @TempDir
+  Path root;
+
+  private static byte[] head(int... bytes)
+  {
+    byte[] head = new byte[32];
+    for(int i = 0; i < bytes.length; i++)
+      head[i] = (byte) bytes[i];
+    return head;
+  }
+
+  /** Builds days/NN/folderNNN trees, returns how many real media files it made. */
+  private int generate() throws IOException
+  {
+    int media = 0;
+    for(int f = 0; f < FOLDERS; f++)
+    {
+      Path folder = Files.createDirectories(root.resolve(String.format("day%02d/folder%03d", f % 7, f)));
+      for(int i = 0; i < FILES_PER_FOLDER; i++)
+      {
+        if(i % 10 == 0)
+          Files.write(folder.resolve("notes" + i + ".mp4"), JUNK); //renamed junk.
+        else if(i % 3 == 0)
+        {
+          Files.write(folder.resolve("photo" + i + ".jpg"), JPEG);
+          media++;
+        }
+        else
+        {
+          Files.write(folder.resolve("clip" + i + ".mp4"), MP4);
+          media++;
+        }
+      }
+    }
+    return media;
+  }
+
+  /** What getLocalMRLS used to do (no content check). */
+  private static List<String> oldWalk(Path root)
+  {
+    Queue<java.io.File> folders = new LinkedList<>(List.of(root.toFile()));
+    List<String> found = new ArrayList<>();
+    while(!folders.isEmpty())
+    {
+      java.io.File[] files = folders.poll().listFiles();
+      if(files == null)
+        continue;
+      for(java.io.File file : files)
+      {
+        if(file.isDirectory())
+          folders.add(file);
+        else
+          found.add(file.getAbsolutePath());
+      }
+    }
+    return found;
+  }
+
+  @Test
+  void scanFiftyThousandFiles() throws IOException
+  {
+    long start = System.nanoTime();
+    int media = generate();
+    System.out.println(String.format("[LibraryScannerBenchmark] generated %,d files in %,dms", FOLDERS * FILES_PER_FOLDER, (System.nanoTime() - start) / 1_000_000L));
+
+    start = System.nanoTime();
+    int walked = oldWalk(root).size();
+    long walkMillis = (System.nanoTime() - start) / 1_000_000L;
+
+    LibraryScanner scanner = new LibraryScanner();
+    try
+    {
+      //first scan warms the jit, the second is the one we time.
+      scanner.scan(root.toString(), true);
+      start = System.nanoTime();
+      List<LibraryScanner.ScannedFile> found = scanner.scan(root.toString(), true);
+      long scanMillis = (System.nanoTime() - start) / 1_000_000L;
+
+      System.out.println(String.format("[LibraryScannerBenchmark] old walk %,d files %,dms, parallel scan %,d media %,dms (%d threads)",
+            walked, walkMillis, found.size(), scanMillis, Runtime.getRuntime().availableProcessors()));
+      assertEquals(FOLDERS * FILES_PER_FOLDER, walked);
+      assertEquals(media, found.size(), "junk should be dropped");
+      assertTrue(scanMillis < LIMIT_MILLIS, "scan took " + scanMillis + "ms");
+    }
+    finally
+    {
+      scanner.shutdown();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.kusa.util.MediaType;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LibraryScannerTest
+{
+  @TempDir
+  Path dir;
+
+  private Path write(String name, int... head) throws IOException
+  {
+    byte[] bytes = new byte[64];
+    for(int i = 0; i < head.length; i++)
+      bytes[i] = (byte) head[i];
+    return Files.write(dir.resolve(name), bytes);
+  }
+
+  private static int[] riff(String form)
+  {
+    int[] head = new int[12];
+    head[0] = 'R'; head[1] = 'I'; head[2] = 'F'; head[3] = 'F';
+    for(int i = 0; i < 4; i++)
+      head[8 + i] = form.charAt(i);
+    return head;
+  }
+
+  @Test
+  void videoExtensionsMapToVideo()
+  {
+    for(String name : Arrays.asList("a.avi", "a.mkv", "a.ts", "a.mp4", "a.mov", "a.webm", "A.AVI"))
+      assertEquals(MediaType.VIDEO, MediaType.fromMimeType(LocalService.mimeType(name)), name);
+  }
+
+  @Test
+  void classifiesAvi() throws IOException
+  {
+    assertEquals(MediaType.VIDEO, LibraryScanner.classify(write("clip.avi", riff("AVI "))));
+  }
+
+  @Test
+  void classifiesMkv() throws IOException
+  {
+    assertEquals(MediaType.VIDEO, LibraryScanner.classify(write("clip.mkv", 0x1A, 0x45, 0xDF, 0xA3)));
+  }
+
+  @Test
+  void classifiesTs() throws IOException
+  {
+    assertEquals(MediaType.VIDEO, LibraryScanner.classify(write("clip.ts", 0x47, 0x40, 0x00, 0x10)));
+  }
+
+  @Test
+  void classifiesMp4AndImages() throws IOException
+  {
+    assertEquals(MediaType.VIDEO, LibraryScanner.classify(write("clip.mp4", 0, 0, 0, 0x20, 'f', 't', 'y', 'p')));
+    assertEquals(MediaType.IMAGE, LibraryScanner.classify(write("photo.jpg", 0xFF, 0xD8, 0xFF, 0xE0)));
+    assertEquals(MediaType.IMAGE, LibraryScanner.classify(write("photo.webp", riff("WEBP"))));
+  }
+
+  @Test
+  void rejectsContentThatDoesntMatchTheName() throws IOException
+  {
+    assertEquals(MediaType.OTHER, LibraryScanner.classify(write("fake.avi", 'j', 'u', 'n', 'k')));
+    assertEquals(MediaType.OTHER, LibraryScanner.classify(write("photo.mp4", 0xFF, 0xD8, 0xFF, 0xE0)));
+    assertEquals(MediaType.OTHER, LibraryScanner.classify(write("notes.txt", riff("AVI "))));
+    assertEquals(MediaType.OTHER, LibraryScanner.classify(write(".hidden.mkv", 0x1A, 0x45, 0xDF, 0xA3)));
+  }
+}
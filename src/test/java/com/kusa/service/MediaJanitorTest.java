@@ -0,0 +1,68 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.kusa.service.MediaJanitor.MirrorMode;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MediaJanitorTest
+{
+  @TempDir
+  Path dir;
+
+  @Test
+  void mirrorModeIgnoresCase()
+  {
+    assertEquals(MirrorMode.DELETE, MediaJanitor.parseMirrorMode("delete"));
+    assertEquals(MirrorMode.QUARANTINE, MediaJanitor.parseMirrorMode(" Quarantine "));
+    assertEquals(MirrorMode.OFF, MediaJanitor.parseMirrorMode("OFF"));
+  }
+
+  @Test
+  void unknownMirrorModeIsOff()
+  {
+    assertEquals(MirrorMode.OFF, MediaJanitor.parseMirrorMode("delet"));
+    assertEquals(MirrorMode.OFF, MediaJanitor.parseMirrorMode(""));
+    assertEquals(MirrorMode.OFF, MediaJanitor.parseMirrorMode(null));
+  }
+
+  /** Records a file in the manifest as last played at a given time. */
+  private static void record(File file, String md5, long lastPlayed)
+  {
+    LocalService.manifest().put(new MediaManifest.Record("", file.getAbsolutePath(), file.length(), file.lastModified(), md5, "video/mp4", 0L, lastPlayed));
+  }
+
+  @Test
+  void evictingOneLinkOfATwinFreesNothing() throws IOException
+  {
+    //the test user.home's manifest, only our records should count.
+    for(MediaManifest.Record record : new ArrayList<>(LocalService.manifest().records()))
+      LocalService.manifest().remove(record.path());
+
+    //a day that isn't today, media scheduled today is never evicted.
+    Path day = Files.createDirectories(dir.resolve(LocalDateTime.now().plusDays(1).getDayOfWeek().name().toLowerCase()));
+    File twin = Files.write(day.resolve("twin.mp4"), new byte[100]).toFile();
+    File link = Files.createLink(day.resolve("link.mp4"), twin.toPath()).toFile();
+    File other = Files.write(day.resolve("other.mp4"), new byte[100]).toFile();
+    record(twin, "aaaa", 1L);
+    record(link, "aaaa", 2L);
+    record(other, "bbbb", 3L);
+
+    //200 bytes on disk, the twin has to go completely to get under 150.
+    MediaJanitor janitor = new MediaJanitor(MirrorMode.OFF, 150L, dir.resolve("quarantine").toString() + "/", dir.resolve("evicted").toString());
+    assertEquals(2, janitor.enforceQuota());
+
+    assertFalse(twin.exists());
+    assertFalse(link.exists(), "one link freed nothing, the other had to go too");
+    assertTrue(other.exists(), "under quota once the twin is gone");
+  }
+}
@@ -0,0 +1,100 @@
+package com.kusa.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PixelStoreTest
+{
+  @TempDir
+  Path dir;
+
+  @Test
+  void loadsWhatWasStoredAsAPlainIntImage()
+  {
+    PixelStore store = new PixelStore(dir.toString(), 32, 16, 0L);
+    BufferedImage image = new BufferedImage(32, 16, BufferedImage.TYPE_INT_ARGB);
+    for(int y = 0; y < 16; y++)
+      for(int x = 0; x < 32; x++)
+        image.setRGB(x, y, 0x80000000 | (x << 16) | (y << 8) | (x ^ y));
+    assertTrue(store.put("/photos/a.jpg", 1L, image));
+
+    BufferedImage loaded = store.load("/photos/a.jpg", 1L);
+    assertNotNull(loaded);
+    //java2d can only accelerate images backed by its own int buffer.
+    assertEquals(BufferedImage.TYPE_INT_ARGB, loaded.getType());
+    assertTrue(loaded.getRaster().getDataBuffer() instanceof DataBufferInt);
+    for(int y = 0; y < 16; y++)
+      for(int x = 0; x < 32; x++)
+        assertEquals(image.getRGB(x, y), loaded.getRGB(x, y));
+  }
+
+  @Test
+  void otherMtimeIsAMiss()
+  {
+    PixelStore store = new PixelStore(dir.toString(), 4, 4, 0L);
+    store.put("/photos/a.jpg", 1L, new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB));
+    assertNull(store.load("/photos/a.jpg", 2L));
+  }
+
+  /** Writes small png photos to sync from. */
+  private List<String> photos(int count) throws IOException
+  {
+    List<String> photos = new ArrayList<>();
+    for(int i = 0; i < count; i++)
+    {
+      java.io.File photo = dir.resolve("photo" + i + ".png").toFile();
+      ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", photo);
+      photos.add(photo.getAbsolutePath());
+    }
+    return photos;
+  }
+
+  @Test
+  void staleEntriesMakeRoomBeforeWriting() throws IOException
+  {
+    PixelStore sizing = new PixelStore(dir.resolve("sizing").toString(), 4, 4, 0L);
+    long budget = 2 * sizing.entryBytes();
+    PixelStore store = new PixelStore(dir.resolve("store").toString(), 4, 4, budget);
+    assertTrue(store.put("/gone/a.jpg", 1L, new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB)));
+    assertTrue(store.put("/gone/b.jpg", 1L, new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB)));
+
+    assertEquals(2, store.sync(photos(2)), "removed photos shouldn't hold up the budget");
+    assertEquals(budget, store.usedBytes());
+    assertNull(store.load("/gone/a.jpg", 1L));
+  }
+
+  @Test
+  void fullStoreSkipsWithoutDecoding() throws IOException
+  {
+    PixelStore sizing = new PixelStore(dir.resolve("sizing").toString(), 4, 4, 0L);
+    PixelStore store = new PixelStore(dir.resolve("store").toString(), 4, 4, sizing.entryBytes());
+    List<String> photos = photos(3);
+
+    assertEquals(1, store.sync(photos));
+    assertEquals(1, store.decodes());
+    assertEquals(0, store.sync(photos));
+    assertEquals(1, store.decodes(), "a full store shouldn't decode photos it can't keep");
+  }
+
+  @Test
+  void usedBytesSurvivesReopening()
+  {
+    PixelStore store = new PixelStore(dir.toString(), 4, 4, 0L);
+    store.put("/photos/a.jpg", 1L, new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB));
+    store.put("/photos/a.jpg", 1L, new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB));
+    assertEquals(store.entryBytes(), store.usedBytes(), "rewriting an entry doesn't add to it");
+    assertEquals(store.entryBytes(), new PixelStore(dir.toString(), 4, 4, 0L).usedBytes());
+  }
+}
@@ -0,0 +1,72 @@
+package com.kusa.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest
+{
+  private static final long OPEN_MILLIS = 300L;
+
+  private CircuitBreaker opened()
+  {
+    CircuitBreaker breaker = new CircuitBreaker("test", 2, OPEN_MILLIS, OPEN_MILLIS * 4);
+    breaker.recordFailure();
+    breaker.recordFailure();
+    return breaker;
+  }
+
+  @Test
+  void opensAfterThreshold()
+  {
+    CircuitBreaker breaker = opened();
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+    assertTrue(breaker.remainingOpenMillis() > 0);
+  }
+
+  @Test
+  void checkingBeforeCallingRecovers() throws InterruptedException
+  {
+    //what GDriveService.isValid() does: ask first, only call drive if it isn't open.
+    CircuitBreaker breaker = opened();
+    assertTrue(breaker.isOpen());
+    Thread.sleep(OPEN_MILLIS * 2);
+
+    assertFalse(breaker.isOpen(), "open time is up, a trial should be allowed");
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest(), "only one trial at a time");
+    breaker.recordSuccess();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  void failedTrialOpensForLonger() throws InterruptedException
+  {
+    CircuitBreaker breaker = opened();
+    Thread.sleep(OPEN_MILLIS * 2);
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+
+    assertTrue(breaker.isOpen());
+    assertTrue(breaker.remainingOpenMillis() > OPEN_MILLIS);
+  }
+
+  @Test
+  void releasedTrialLetsTheNextCallTry() throws InterruptedException
+  {
+    CircuitBreaker breaker = opened();
+    Thread.sleep(OPEN_MILLIS * 2);
+    assertTrue(breaker.allowRequest());
+    //the trial ended without a verdict (auth failure), somebody else gets to try.
+    breaker.release();
+
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    assertTrue(breaker.allowRequest());
+  }
+}